@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2014 Badoo Trading Limited
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.badoo.mobile.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Throughput of the chain of pending runnables with 1, 4 and 8 threads posting at once.
+ * Each thread also removes its own oldest entry once it has {@link #WINDOW} of them, the way
+ * looper runs them, so removal works at the tail while posting works at the head.
+ * Baseline is the bare chain with identity index under a single lock, which is the least
+ * {@link ChainedRef} can cost on top of its own bookkeeping.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ChainBenchmark {
+
+    static final String CHAINED = "chained";
+    static final String LOCKED = "locked";
+
+    private static final int WINDOW = 64;
+
+    @State(Scope.Benchmark)
+    public static class Shared {
+        @Param({CHAINED, LOCKED})
+        public String chain;
+
+        Chain mChain;
+
+        @Setup
+        public void setUp() {
+            switch (chain) {
+                case CHAINED:
+                    mChain = new EntryChain();
+                    break;
+                case LOCKED:
+                    mChain = new LockedChain();
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown chain: " + chain);
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Poster {
+        final ArrayDeque<Object> mPending = new ArrayDeque<>();
+        final Runnable mRunnable = new PostBenchmark.DummyRunnable(); // Own one, as threads post different runnables
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Object post1Thread(Shared shared, Poster poster) {
+        return postAndRemoveOldest(shared.mChain, poster);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Object post4Threads(Shared shared, Poster poster) {
+        return postAndRemoveOldest(shared.mChain, poster);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public Object post8Threads(Shared shared, Poster poster) {
+        return postAndRemoveOldest(shared.mChain, poster);
+    }
+
+    private static Object postAndRemoveOldest(Chain chain, Poster poster) {
+        final Object entry = chain.insert(poster.mRunnable);
+        poster.mPending.add(entry);
+        if (poster.mPending.size() > WINDOW) {
+            chain.remove(poster.mPending.poll());
+        }
+        return entry;
+    }
+
+    interface Chain {
+        Object insert(Runnable r);
+
+        void remove(Object entry);
+    }
+
+    private static class EntryChain implements Chain {
+        private final ChainedRef mHead = ChainedRef.head();
+
+        @Override
+        public Object insert(Runnable r) {
+            final ChainedRef ref = new ChainedRef(r);
+            mHead.insertAfter(ref);
+            return ref;
+        }
+
+        @Override
+        public void remove(Object entry) {
+            ((ChainedRef) entry).remove();
+        }
+    }
+
+    /**
+     * Chain guarded by single handler-wide lock, the way it used to be
+     */
+    private static class LockedChain implements Chain {
+        private final Lock mLock = new ReentrantLock();
+        private final Map<Runnable, Entry> mIndex = new IdentityHashMap<>();
+        private final Entry mHead = new Entry(null);
+
+        @Override
+        public Object insert(Runnable r) {
+            final Entry entry = new Entry(r);
+            mLock.lock();
+            try {
+                entry.next = mHead.next;
+                if (mHead.next != null) {
+                    mHead.next.prev = entry;
+                }
+                mHead.next = entry;
+                entry.prev = mHead;
+                mIndex.put(r, entry);
+            } finally {
+                mLock.unlock();
+            }
+            return entry;
+        }
+
+        @Override
+        public void remove(Object removed) {
+            final Entry entry = (Entry) removed;
+            mLock.lock();
+            try {
+                if (entry.prev != null) {
+                    entry.prev.next = entry.next;
+                }
+                if (entry.next != null) {
+                    entry.next.prev = entry.prev;
+                }
+                entry.prev = null;
+                entry.next = null;
+                if (mIndex.get(entry.runnable) == entry) {
+                    mIndex.remove(entry.runnable);
+                }
+            } finally {
+                mLock.unlock();
+            }
+        }
+
+        static class Entry {
+            final Runnable runnable;
+            final WeakRunnable wrapper; // Allocating as much as ChainedRef does
+            Entry next;
+            Entry prev;
+
+            Entry(Runnable runnable) {
+                this.runnable = runnable;
+                this.wrapper = new WeakRunnable(new WeakReference<>(runnable), new WeakReference<ChainedRef>(null));
+            }
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2014 Badoo Trading Limited
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.badoo.mobile.util;
+
+import android.os.Looper;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of posting batch of delayed runnables and dropping all of them with
+ * removeCallbacksAndMessages(null), as screens do once destroyed
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ClearBenchmark {
+
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+
+    @Param({Targets.PLAIN, Targets.WEAK, Targets.POOLED})
+    public String handler;
+
+    @Param({"10", "100", "1000"})
+    public int depth;
+
+    private Targets.Target mTarget;
+    private Runnable[] mRunnables;
+
+    @Setup
+    public void setUp() {
+        final Looper looper = Targets.prepareLooper();
+        mTarget = Targets.create(handler, looper);
+        mRunnables = new Runnable[depth];
+        for (int i = 0; i < depth; ++i) {
+            mRunnables[i] = new PostBenchmark.DummyRunnable();
+        }
+    }
+
+    @Benchmark
+    public void postThenRemoveCallbacksAndMessages() {
+        for (Runnable runnable : mRunnables) {
+            mTarget.postDelayed(runnable, HOUR);
+        }
+        mTarget.removeCallbacksAndMessages(null);
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2014 Badoo Trading Limited
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.badoo.mobile.util;
+
+import android.os.Looper;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Screens which post long delayed runnables and go away before they are due.
+ * Plain handler keeps every screen reachable from the queue, so GC has to trace and copy them,
+ * weak handler lets them die young. Run with -prof gc to see the difference in GC time.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, batchSize = GcReclaimBenchmark.SCREENS)
+@Measurement(iterations = 10, batchSize = GcReclaimBenchmark.SCREENS)
+public class GcReclaimBenchmark {
+
+    static final int SCREENS = 5000;
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+
+    @Param({Targets.PLAIN, Targets.WEAK, Targets.POOLED})
+    public String handler;
+
+    private Looper mLooper;
+    private Targets.Target mShared;
+
+    @Setup
+    public void setUp() {
+        mLooper = Targets.prepareLooper();
+        mShared = Targets.create(Targets.PLAIN, mLooper);
+    }
+
+    @TearDown(Level.Iteration)
+    public void clear() {
+        mLooper.clear();
+    }
+
+    @Benchmark
+    public Object openAndCloseScreen() {
+        final Screen screen = new Screen(Targets.PLAIN.equals(handler) ? mShared : Targets.create(handler, mLooper));
+        screen.scheduleRefresh();
+        return screen;
+    }
+
+    private static class Screen {
+        private final byte[] mViews = new byte[16 * 1024];
+        private final Targets.Target mHandler;
+
+        Screen(Targets.Target handler) {
+            mHandler = handler;
+        }
+
+        void scheduleRefresh() {
+            mHandler.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    mViews[0]++;
+                }
+            }, HOUR);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2014 Badoo Trading Limited
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.badoo.mobile.util;
+
+import android.os.Looper;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of posting runnables while other runnables are pending in the queue.
+ * Difference between plain and weak handlers is the wrapper overhead paid per message.
+ * Removal of the oldest pending runnable scales with <var>depth</var> for every handler, as the
+ * message queue is scanned linearly; weak handlers should add only a constant on top of that.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PostBenchmark {
+
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+
+    @Param({Targets.PLAIN, Targets.WEAK, Targets.POOLED})
+    public String handler;
+
+    @Param({"0", "100", "1000", "10000"})
+    public int depth;
+
+    private Looper mLooper;
+    private Targets.Target mTarget;
+    private Runnable[] mPending;
+    private int mOldest;
+    private final Runnable mRunnable = new DummyRunnable();
+    private final Runnable mNotPosted = new DummyRunnable();
+
+    @Setup
+    public void setUp() {
+        mLooper = Targets.prepareLooper();
+        mTarget = Targets.create(handler, mLooper);
+        mPending = new Runnable[depth];
+        for (int i = 0; i < depth; ++i) {
+            mPending[i] = new DummyRunnable();
+            mTarget.postDelayed(mPending[i], HOUR);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        mTarget.removeCallbacksAndMessages(null);
+    }
+
+    @Benchmark
+    public int postAndDispatch() {
+        mTarget.post(mRunnable);
+        return mLooper.drain();
+    }
+
+    @Benchmark
+    public boolean postDelayedThenRemoveCallbacks() {
+        final boolean posted = mTarget.postDelayed(mRunnable, HOUR);
+        mTarget.removeCallbacks(mRunnable);
+        return posted;
+    }
+
+    /**
+     * Removes the oldest pending runnable, the deepest one in the chain, and posts it again,
+     * so the depth stays the same
+     */
+    @Benchmark
+    public boolean removeOldestThenPostAgain() {
+        if (mPending.length == 0) {
+            return false;
+        }
+        final Runnable oldest = mPending[mOldest];
+        mOldest = (mOldest + 1) % mPending.length;
+        mTarget.removeCallbacks(oldest);
+        return mTarget.postDelayed(oldest, HOUR);
+    }
+
+    @Benchmark
+    public void removeCallbacksNotPosted() {
+        mTarget.removeCallbacks(mNotPosted);
+    }
+
+    static class DummyRunnable implements Runnable {
+        @Override
+        public void run() {
+        }
+    }
+}
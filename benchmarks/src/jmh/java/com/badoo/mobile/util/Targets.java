@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2014 Badoo Trading Limited
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.badoo.mobile.util;
+
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Handlers being compared, behind common interface so all of them pay for the same indirection
+ */
+abstract class Targets {
+
+    static final String PLAIN = "plain";
+    static final String WEAK = "weak";
+    static final String POOLED = "pooled";
+
+    interface Target {
+        boolean post(Runnable r);
+
+        boolean postDelayed(Runnable r, long delayMillis);
+
+        void removeCallbacks(Runnable r);
+
+        void removeCallbacksAndMessages(Object token);
+    }
+
+    private Targets() {
+    }
+
+    static Looper prepareLooper() {
+        if (Looper.myLooper() == null) {
+            Looper.prepare();
+        }
+        return Looper.myLooper();
+    }
+
+    static Target create(String type, Looper looper) {
+        switch (type) {
+            case PLAIN:
+                return new PlainTarget(new Handler(looper));
+            case WEAK:
+                return new WeakTarget(new WeakHandler(looper));
+            case POOLED:
+                final WeakHandler handler = new WeakHandler(looper);
+                handler.setPooled(true);
+                return new WeakTarget(handler);
+            default:
+                throw new IllegalArgumentException("Unknown handler: " + type);
+        }
+    }
+
+    private static class PlainTarget implements Target {
+        private final Handler mHandler;
+
+        PlainTarget(Handler handler) {
+            mHandler = handler;
+        }
+
+        @Override
+        public boolean post(Runnable r) {
+            return mHandler.post(r);
+        }
+
+        @Override
+        public boolean postDelayed(Runnable r, long delayMillis) {
+            return mHandler.postDelayed(r, delayMillis);
+        }
+
+        @Override
+        public void removeCallbacks(Runnable r) {
+            mHandler.removeCallbacks(r);
+        }
+
+        @Override
+        public void removeCallbacksAndMessages(Object token) {
+            mHandler.removeCallbacksAndMessages(token);
+        }
+    }
+
+    private static class WeakTarget implements Target {
+        private final WeakHandler mHandler;
+
+        WeakTarget(WeakHandler handler) {
+            mHandler = handler;
+        }
+
+        @Override
+        public boolean post(Runnable r) {
+            return mHandler.post(r);
+        }
+
+        @Override
+        public boolean postDelayed(Runnable r, long delayMillis) {
+            return mHandler.postDelayed(r, delayMillis);
+        }
+
+        @Override
+        public void removeCallbacks(Runnable r) {
+            mHandler.removeCallbacks(r);
+        }
+
+        @Override
+        public void removeCallbacksAndMessages(Object token) {
+            mHandler.removeCallbacksAndMessages(token);
+        }
+    }
+}
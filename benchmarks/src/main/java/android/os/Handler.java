@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2014 Badoo Trading Limited
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package android.os;
+
+/**
+ * JVM stand-in for android.os.Handler, used only by benchmarks
+ */
+public class Handler {
+    private final Looper mLooper;
+    private final MessageQueue mQueue;
+    private final Callback mCallback;
+    private final boolean mAsynchronous;
+
+    public interface Callback {
+        boolean handleMessage(Message msg);
+    }
+
+    public Handler() {
+        this(null, false);
+    }
+
+    public Handler(Callback callback) {
+        this(callback, false);
+    }
+
+    public Handler(Looper looper) {
+        this(looper, null, false);
+    }
+
+    public Handler(Looper looper, Callback callback) {
+        this(looper, callback, false);
+    }
+
+    public Handler(Callback callback, boolean async) {
+        this(Looper.myLooper(), callback, async);
+    }
+
+    public Handler(Looper looper, Callback callback, boolean async) {
+        if (looper == null) {
+            throw new RuntimeException("Can't create handler inside thread that has not called Looper.prepare()");
+        }
+        mLooper = looper;
+        mQueue = looper.getQueue();
+        mCallback = callback;
+        mAsynchronous = async;
+    }
+
+    public static Handler createAsync(Looper looper) {
+        return new Handler(looper, null, true);
+    }
+
+    public static Handler createAsync(Looper looper, Callback callback) {
+        return new Handler(looper, callback, true);
+    }
+
+    public void handleMessage(Message msg) {
+    }
+
+    public void dispatchMessage(Message msg) {
+        if (msg.callback != null) {
+            msg.callback.run();
+        } else {
+            if (mCallback != null && mCallback.handleMessage(msg)) {
+                return;
+            }
+            handleMessage(msg);
+        }
+    }
+
+    public final Message obtainMessage() {
+        return Message.obtain(this);
+    }
+
+    public final Message obtainMessage(int what) {
+        return Message.obtain(this, what);
+    }
+
+    public final Message obtainMessage(int what, Object obj) {
+        return Message.obtain(this, what, obj);
+    }
+
+    public final boolean post(Runnable r) {
+        return sendMessageDelayed(getPostMessage(r), 0);
+    }
+
+    public final boolean postAtTime(Runnable r, long uptimeMillis) {
+        return sendMessageAtTime(getPostMessage(r), uptimeMillis);
+    }
+
+    public final boolean postAtTime(Runnable r, Object token, long uptimeMillis) {
+        final Message m = getPostMessage(r);
+        m.obj = token;
+        return sendMessageAtTime(m, uptimeMillis);
+    }
+
+    public final boolean postDelayed(Runnable r, long delayMillis) {
+        return sendMessageDelayed(getPostMessage(r), delayMillis);
+    }
+
+    public final boolean postDelayed(Runnable r, Object token, long delayMillis) {
+        final Message m = getPostMessage(r);
+        m.obj = token;
+        return sendMessageDelayed(m, delayMillis);
+    }
+
+    public final boolean postAtFrontOfQueue(Runnable r) {
+        return sendMessageAtFrontOfQueue(getPostMessage(r));
+    }
+
+    public final void removeCallbacks(Runnable r) {
+        mQueue.removeMessages(this, r, null);
+    }
+
+    public final void removeCallbacks(Runnable r, Object token) {
+        mQueue.removeMessages(this, r, token);
+    }
+
+    public final boolean sendMessage(Message msg) {
+        return sendMessageDelayed(msg, 0);
+    }
+
+    public final boolean sendEmptyMessage(int what) {
+        return sendEmptyMessageDelayed(what, 0);
+    }
+
+    public final boolean sendEmptyMessageDelayed(int what, long delayMillis) {
+        return sendMessageDelayed(Message.obtain(this, what), delayMillis);
+    }
+
+    public final boolean sendEmptyMessageAtTime(int what, long uptimeMillis) {
+        return sendMessageAtTime(Message.obtain(this, what), uptimeMillis);
+    }
+
+    public final boolean sendMessageDelayed(Message msg, long delayMillis) {
+        return sendMessageAtTime(msg, SystemClock.uptimeMillis() + Math.max(0, delayMillis));
+    }
+
+    public boolean sendMessageAtTime(Message msg, long uptimeMillis) {
+        return enqueueMessage(msg, uptimeMillis);
+    }
+
+    public final boolean sendMessageAtFrontOfQueue(Message msg) {
+        return enqueueMessage(msg, 0);
+    }
+
+    public final void removeMessages(int what) {
+        mQueue.removeMessages(this, what, null);
+    }
+
+    public final void removeMessages(int what, Object object) {
+        mQueue.removeMessages(this, what, object);
+    }
+
+    public final void removeCallbacksAndMessages(Object token) {
+        mQueue.removeCallbacksAndMessages(this, token);
+    }
+
+    public final boolean hasMessages(int what) {
+        return mQueue.hasMessages(this, what, null);
+    }
+
+    public final boolean hasMessages(int what, Object object) {
+        return mQueue.hasMessages(this, what, object);
+    }
+
+    public final boolean hasCallbacks(Runnable r) {
+        return mQueue.hasMessages(this, r, null);
+    }
+
+    public final Looper getLooper() {
+        return mLooper;
+    }
+
+    private Message getPostMessage(Runnable r) {
+        return Message.obtain(this, r);
+    }
+
+    private boolean enqueueMessage(Message msg, long uptimeMillis) {
+        msg.target = this;
+        if (mAsynchronous) {
+            msg.setAsynchronous(true);
+        }
+        return mQueue.enqueueMessage(msg, uptimeMillis);
+    }
+}
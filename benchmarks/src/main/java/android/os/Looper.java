@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2014 Badoo Trading Limited
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package android.os;
+
+/**
+ * JVM stand-in for android.os.Looper, used only by benchmarks.
+ * Doesn't block, call {@link #drain()} to dispatch messages which are due.
+ */
+public final class Looper {
+    private static final ThreadLocal<Looper> sThreadLocal = new ThreadLocal<>();
+    private static Looper sMainLooper;
+
+    private final MessageQueue mQueue = new MessageQueue();
+    private final Thread mThread = Thread.currentThread();
+
+    private Looper() {
+    }
+
+    public static void prepare() {
+        if (sThreadLocal.get() != null) {
+            throw new RuntimeException("Only one Looper may be created per thread");
+        }
+        sThreadLocal.set(new Looper());
+    }
+
+    public static void prepareMainLooper() {
+        prepare();
+        synchronized (Looper.class) {
+            sMainLooper = myLooper();
+        }
+    }
+
+    public static Looper getMainLooper() {
+        synchronized (Looper.class) {
+            return sMainLooper;
+        }
+    }
+
+    public static Looper myLooper() {
+        return sThreadLocal.get();
+    }
+
+    public static MessageQueue myQueue() {
+        return myLooper().mQueue;
+    }
+
+    /**
+     * Dispatches every message which is due, then runs idle handlers once
+     *
+     * @return number of dispatched messages
+     */
+    public int drain() {
+        int count = 0;
+        Message msg;
+        while ((msg = mQueue.next()) != null) {
+            msg.target.dispatchMessage(msg);
+            msg.recycle();
+            count++;
+        }
+        mQueue.runIdleHandlers();
+        return count;
+    }
+
+    /**
+     * @return number of messages waiting in the queue
+     */
+    public int pending() {
+        return mQueue.size();
+    }
+
+    /**
+     * Drops every pending message, whatever handler it belongs to
+     */
+    public void clear() {
+        mQueue.removeCallbacksAndMessages(null, null);
+    }
+
+    public MessageQueue getQueue() {
+        return mQueue;
+    }
+
+    public Thread getThread() {
+        return mThread;
+    }
+
+    public boolean isCurrentThread() {
+        return Thread.currentThread() == mThread;
+    }
+
+    public void quit() {
+        mQueue.quit();
+    }
+
+    public void quitSafely() {
+        mQueue.quit();
+    }
+}
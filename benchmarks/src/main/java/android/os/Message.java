@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2014 Badoo Trading Limited
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package android.os;
+
+/**
+ * JVM stand-in for android.os.Message, used only by benchmarks.
+ * Pooled the same way as the real one.
+ */
+public final class Message {
+    private static final int MAX_POOL_SIZE = 50;
+    private static final Object sPoolSync = new Object();
+    private static Message sPool;
+    private static int sPoolSize = 0;
+
+    public int what;
+    public int arg1;
+    public int arg2;
+    public Object obj;
+
+    long when;
+    Handler target;
+    Runnable callback;
+    boolean asynchronous;
+    Message next;
+
+    public static Message obtain() {
+        synchronized (sPoolSync) {
+            if (sPool != null) {
+                final Message m = sPool;
+                sPool = m.next;
+                m.next = null;
+                sPoolSize--;
+                return m;
+            }
+        }
+        return new Message();
+    }
+
+    public static Message obtain(Message orig) {
+        final Message m = obtain();
+        m.copyFrom(orig);
+        m.target = orig.target;
+        m.callback = orig.callback;
+        return m;
+    }
+
+    public static Message obtain(Handler h) {
+        final Message m = obtain();
+        m.target = h;
+        return m;
+    }
+
+    public static Message obtain(Handler h, Runnable callback) {
+        final Message m = obtain(h);
+        m.callback = callback;
+        return m;
+    }
+
+    public static Message obtain(Handler h, int what) {
+        final Message m = obtain(h);
+        m.what = what;
+        return m;
+    }
+
+    public static Message obtain(Handler h, int what, Object obj) {
+        final Message m = obtain(h, what);
+        m.obj = obj;
+        return m;
+    }
+
+    public static Message obtain(Handler h, int what, int arg1, int arg2) {
+        final Message m = obtain(h, what);
+        m.arg1 = arg1;
+        m.arg2 = arg2;
+        return m;
+    }
+
+    public static Message obtain(Handler h, int what, int arg1, int arg2, Object obj) {
+        final Message m = obtain(h, what, arg1, arg2);
+        m.obj = obj;
+        return m;
+    }
+
+    public void recycle() {
+        what = 0;
+        arg1 = 0;
+        arg2 = 0;
+        obj = null;
+        when = 0;
+        target = null;
+        callback = null;
+        asynchronous = false;
+        synchronized (sPoolSync) {
+            if (sPoolSize < MAX_POOL_SIZE) {
+                next = sPool;
+                sPool = this;
+                sPoolSize++;
+            }
+        }
+    }
+
+    public void copyFrom(Message o) {
+        what = o.what;
+        arg1 = o.arg1;
+        arg2 = o.arg2;
+        obj = o.obj;
+        asynchronous = o.asynchronous;
+    }
+
+    public long getWhen() {
+        return when;
+    }
+
+    public Handler getTarget() {
+        return target;
+    }
+
+    public void setTarget(Handler target) {
+        this.target = target;
+    }
+
+    public Runnable getCallback() {
+        return callback;
+    }
+
+    public boolean isAsynchronous() {
+        return asynchronous;
+    }
+
+    public void setAsynchronous(boolean async) {
+        asynchronous = async;
+    }
+
+    public void sendToTarget() {
+        target.sendMessage(this);
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2014 Badoo Trading Limited
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package android.os;
+
+import java.util.ArrayList;
+
+/**
+ * JVM stand-in for android.os.MessageQueue, used only by benchmarks.
+ * Keeps messages in the linked list sorted by delivery time, the same way the real one does,
+ * but never blocks: {@link #next()} returns null once there is nothing due.
+ */
+public final class MessageQueue {
+    private final ArrayList<IdleHandler> mIdleHandlers = new ArrayList<>();
+    private Message mMessages;
+    private boolean mQuitting;
+
+    public interface IdleHandler {
+        boolean queueIdle();
+    }
+
+    MessageQueue() {
+    }
+
+    public void addIdleHandler(IdleHandler handler) {
+        synchronized (this) {
+            mIdleHandlers.add(handler);
+        }
+    }
+
+    public void removeIdleHandler(IdleHandler handler) {
+        synchronized (this) {
+            mIdleHandlers.remove(handler);
+        }
+    }
+
+    public boolean isIdle() {
+        synchronized (this) {
+            return mMessages == null || SystemClock.uptimeMillis() < mMessages.when;
+        }
+    }
+
+    boolean enqueueMessage(Message msg, long when) {
+        synchronized (this) {
+            if (mQuitting) {
+                msg.recycle();
+                return false;
+            }
+            msg.when = when;
+            Message p = mMessages;
+            if (p == null || when == 0 || when < p.when) {
+                msg.next = p;
+                mMessages = msg;
+            } else {
+                Message prev;
+                do {
+                    prev = p;
+                    p = p.next;
+                } while (p != null && when >= p.when);
+                msg.next = p;
+                prev.next = msg;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * @return next message which is due or null if there is none
+     */
+    Message next() {
+        synchronized (this) {
+            final Message msg = mMessages;
+            if (msg == null || SystemClock.uptimeMillis() < msg.when) {
+                return null;
+            }
+            mMessages = msg.next;
+            msg.next = null;
+            return msg;
+        }
+    }
+
+    /**
+     * Runs idle handlers once, removing ones which don't want to stay
+     */
+    void runIdleHandlers() {
+        final IdleHandler[] handlers;
+        synchronized (this) {
+            if (mIdleHandlers.isEmpty()) { // Keeps draining free of allocations
+                return;
+            }
+            handlers = mIdleHandlers.toArray(new IdleHandler[0]);
+        }
+        for (IdleHandler handler : handlers) {
+            if (!handler.queueIdle()) {
+                removeIdleHandler(handler);
+            }
+        }
+    }
+
+    int size() {
+        synchronized (this) {
+            int size = 0;
+            for (Message p = mMessages; p != null; p = p.next) {
+                size++;
+            }
+            return size;
+        }
+    }
+
+    boolean isQuitting() {
+        synchronized (this) {
+            return mQuitting;
+        }
+    }
+
+    void quit() {
+        synchronized (this) {
+            mQuitting = true;
+            removeAll(null, false, 0, null, null, true);
+        }
+    }
+
+    boolean hasMessages(Handler h, int what, Object object) {
+        synchronized (this) {
+            for (Message p = mMessages; p != null; p = p.next) {
+                if (p.target == h && p.callback == null && p.what == what && (object == null || p.obj == object)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    boolean hasMessages(Handler h, Runnable r, Object object) {
+        synchronized (this) {
+            for (Message p = mMessages; p != null; p = p.next) {
+                if (p.target == h && p.callback == r && (object == null || p.obj == object)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    void removeMessages(Handler h, int what, Object object) {
+        synchronized (this) {
+            removeAll(h, true, what, null, object, false);
+        }
+    }
+
+    void removeMessages(Handler h, Runnable r, Object object) {
+        synchronized (this) {
+            removeAll(h, false, 0, r, object, false);
+        }
+    }
+
+    void removeCallbacksAndMessages(Handler h, Object object) {
+        synchronized (this) {
+            removeAll(h, false, 0, null, object, true);
+        }
+    }
+
+    private void removeAll(Handler h, boolean byWhat, int what, Runnable r, Object object, boolean any) {
+        Message prev = null;
+        Message p = mMessages;
+        while (p != null) {
+            final Message next = p.next;
+            final boolean matches = (h == null || p.target == h)
+                && (object == null || p.obj == object)
+                && (any || (byWhat ? p.callback == null && p.what == what : p.callback == r));
+            if (matches) {
+                if (prev == null) {
+                    mMessages = next;
+                } else {
+                    prev.next = next;
+                }
+                p.recycle();
+            } else {
+                prev = p;
+            }
+            p = next;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2014 Badoo Trading Limited
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.badoo.mobile.util;
+
+import android.os.Looper;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * JVM tests of {@link WeakHandler#setPooled(boolean) pooled} posting through the real
+ * post and dispatch path, on top of stand-ins for {@link Looper} and MessageQueue
+ */
+@SuppressWarnings("ALL")
+public class WeakHandlerPooledPostTest {
+
+    private static final int ITERATIONS = 100000;
+    private static final int MAX_WARMUP_ROUNDS = 20;
+    private static final int SETTLED_ROUNDS = 3; // Allocation free rounds in a row which end warm up
+    private static final int MEASURED_ROUNDS = 5;
+
+    private Looper mLooper;
+    private WeakHandler mHandler;
+    private CountingRunnable mRunnable;
+    private int mPosted;
+
+    @Before
+    public void setUp() {
+        if (Looper.myLooper() == null) {
+            Looper.prepare();
+        }
+        mLooper = Looper.myLooper();
+        mLooper.clear();
+        mHandler = new WeakHandler();
+        mHandler.setPooled(true);
+        mRunnable = new CountingRunnable();
+    }
+
+    @Test
+    public void steadyStatePostDoesNotAllocate() {
+        final long allocated = measure(new Runnable() {
+            @Override
+            public void run() {
+                mHandler.post(mRunnable);
+                mPosted++;
+                mLooper.drain();
+            }
+        });
+
+        assertEquals(mPosted, mRunnable.count);
+        assertEquals("Bytes allocated by steady state post and dispatch", 0, allocated);
+        assertNull(mHandler.mRunnables.next);
+    }
+
+    @Test
+    public void steadyStatePostDelayedDoesNotAllocate() {
+        final long allocated = measure(new Runnable() {
+            @Override
+            public void run() {
+                mHandler.postDelayed(mRunnable, 0);
+                mPosted++;
+                mLooper.drain();
+            }
+        });
+
+        assertEquals(mPosted, mRunnable.count);
+        assertEquals("Bytes allocated by steady state delayed post and dispatch", 0, allocated);
+        assertNull(mHandler.mRunnables.next);
+    }
+
+    /**
+     * Runs <var>postAndDispatch</var> in rounds to warm up pools of entries and messages, index
+     * and JIT, until allocation settles. Then measures several rounds and returns the smallest
+     * number of bytes allocated by one of them, as JIT compilation and deoptimization may still
+     * allocate on this thread now and then.
+     */
+    private static long measure(Runnable postAndDispatch) {
+        int settled = 0;
+        for (int round = 0; round < MAX_WARMUP_ROUNDS && settled < SETTLED_ROUNDS; ++round) {
+            settled = allocatedBy(postAndDispatch) == 0 ? settled + 1 : 0;
+        }
+        long min = Long.MAX_VALUE;
+        for (int round = 0; round < MEASURED_ROUNDS; ++round) {
+            min = Math.min(min, allocatedBy(postAndDispatch));
+        }
+        return min;
+    }
+
+    private static long allocatedBy(Runnable postAndDispatch) {
+        final com.sun.management.ThreadMXBean bean =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final long threadId = Thread.currentThread().getId();
+        bean.getThreadAllocatedBytes(threadId); // So that its own first call isn't measured
+        final long before = bean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < ITERATIONS; ++i) {
+            postAndDispatch.run();
+        }
+        return bean.getThreadAllocatedBytes(threadId) - before;
+    }
+
+    private static class CountingRunnable implements Runnable {
+        int count;
+
+        @Override
+        public void run() {
+            count++;
+        }
+    }
+}
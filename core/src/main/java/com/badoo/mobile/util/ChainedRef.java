@@ -0,0 +1,489 @@
+/*
+ * Copyright (c) 2014 Badoo Trading Limited
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.badoo.mobile.util;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Entry of the chain keeping hard references to posted runnables.
+ * <p/>
+ * The whole chain, together with its {@link Index} of entries by runnable and by token, is
+ * guarded by a single lock created by the head, which entries get on insertion. It is held for
+ * a few field writes and a map update only, so posting threads and the looper rarely wait on it.
+ */
+class ChainedRef {
+    @Nullable
+    volatile Lock lock; // Lock of the chain, created by the head on first insertion
+    @Nullable
+    ChainedRef next;
+    @Nullable
+    ChainedRef prev;
+    @Nullable
+    ChainedRef nextSame; // Older entry posted with the same runnable
+    @Nullable
+    ChainedRef prevSame; // Newer entry posted with the same runnable
+    @NonNull
+    Runnable runnable; // Changes only for pooled entries
+    @NonNull
+    final WeakRunnable wrapper; // Null for the head only, which is never posted
+
+    @Nullable
+    Index index; // Owned by the head, others have it while they are in the chain
+
+    @Nullable
+    final NodePool pool;
+    int generation; // Bumped each time pooled entry is recycled
+    @Nullable
+    Object timer; // Set before entry gets into the chain, for posts of WeakHandler timing wheel only
+    @Nullable
+    Object token; // Set before entry gets into the chain, obj of its message
+    @Nullable
+    Object site; // Set before entry gets into the chain, if its post was sampled by RetentionTracker
+    long postedAt; // Set before entry gets into the chain, uptime of its post if monitored, 0 otherwise
+    @Nullable
+    ChainedRef nextToken; // Older entry posted with the same token
+    @Nullable
+    ChainedRef prevToken; // Newer entry posted with the same token
+
+    /**
+     * Creates head of the chain. It is never posted, so it has neither runnable nor wrapper
+     */
+    @NonNull
+    static ChainedRef head() {
+        return new ChainedRef();
+    }
+
+    @SuppressWarnings("ConstantConditions")
+    private ChainedRef() {
+        this.pool = null;
+        this.wrapper = null;
+    }
+
+    public ChainedRef(@NonNull Runnable r) {
+        this(r, false);
+    }
+
+    /**
+     * @param claiming true if wrapper should run runnable only while entry is in the chain,
+     *        for executors which can't remove scheduled tasks
+     */
+    ChainedRef(@NonNull Runnable r, boolean claiming) {
+        this.runnable = r;
+        this.pool = null;
+        this.wrapper = claiming
+            ? new ClaimingRunnable(new WeakReference<>(this))
+            : new WeakRunnable(new WeakReference<>(r), new WeakReference<>(this));
+    }
+
+    /**
+     * Creates entry for runnable whose wrapper is handed over to <var>queue</var>
+     */
+    ChainedRef(@NonNull Runnable r, @NonNull WrapperQueue queue) {
+        this(r, queue, false);
+    }
+
+    /**
+     * @param claiming true if wrapper should run runnable only while entry is in the chain
+     */
+    ChainedRef(@NonNull Runnable r, @NonNull WrapperQueue queue, boolean claiming) {
+        this.runnable = r;
+        this.pool = null;
+        this.wrapper = claiming
+            ? new ClaimingRunnable(this, queue)
+            : new WeakRunnable(new WeakReference<>(r), this, queue);
+    }
+
+    ChainedRef(@NonNull NodePool pool) {
+        this.pool = pool;
+        this.wrapper = pool.queue != null
+            ? new WeakRunnable(null, this, pool.queue)
+            : new WeakRunnable(null, new WeakReference<>(this));
+    }
+
+    public WeakRunnable remove() {
+        claim(false, 0);
+        return wrapper;
+    }
+
+    public void insertAfter(@NonNull ChainedRef candidate) {
+        final Lock lock = chainLock();
+        lock.lock();
+        try {
+            if (this.next != null) {
+                this.next.prev = candidate;
+            }
+
+            candidate.next = this.next;
+            this.next = candidate;
+            candidate.prev = this;
+            candidate.lock = lock;
+            index().add(candidate);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Inserts all candidates after this entry at once, keeping their order
+     */
+    void insertAllAfter(@NonNull ChainedRef[] candidates) {
+        final int last = candidates.length - 1;
+        for (int i = 0; i < last; i++) { // Not reachable by other threads yet
+            candidates[i].next = candidates[i + 1];
+            candidates[i + 1].prev = candidates[i];
+        }
+        final Lock lock = chainLock();
+        lock.lock();
+        try {
+            if (this.next != null) {
+                this.next.prev = candidates[last];
+            }
+
+            candidates[last].next = this.next;
+            this.next = candidates[0];
+            candidates[0].prev = this;
+
+            final Index index = index();
+            for (ChainedRef candidate : candidates) {
+                candidate.lock = lock;
+                index.add(candidate);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns number of entries registered in the index of this head
+     */
+    int indexedCount() {
+        final Lock lock = chainLock();
+        lock.lock();
+        try {
+            return index != null ? index.size() : 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Nullable
+    public WeakRunnable remove(Runnable obj) {
+        final ChainedRef ref = removeRef(obj);
+        return ref != null ? ref.wrapper : null;
+    }
+
+    @Nullable
+    ChainedRef removeRef(Runnable obj) {
+        return removeRef(obj, false, null, null);
+    }
+
+    /**
+     * Removes the most recent entry of <var>obj</var> posted with one of the tokens
+     */
+    @Nullable
+    ChainedRef removeRef(Runnable obj, @NonNull Object token, @Nullable Object otherToken) {
+        return removeRef(obj, true, token, otherToken);
+    }
+
+    @Nullable
+    private ChainedRef removeRef(Runnable obj, boolean matchToken, @Nullable Object token,
+                                 @Nullable Object otherToken) {
+        final Lock lock = chainLock();
+        lock.lock();
+        try {
+            if (index == null) {
+                return null;
+            }
+            // Index always points to the most recently inserted entry, which is exactly
+            // the one a scan from the head would find first
+            ChainedRef curr = index.get(obj);
+            while (matchToken && curr != null && curr.token != token
+                && (otherToken == null || curr.token != otherToken)) {
+                curr = curr.nextSame;
+            }
+            if (curr != null) {
+                curr.unlinkLocked();
+            }
+            return curr;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns true if an entry of <var>obj</var> is registered in the index of this head
+     */
+    boolean isPending(Runnable obj) {
+        final Lock lock = chainLock();
+        lock.lock();
+        try {
+            return index != null && index.get(obj) != null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes all entries after this one
+     */
+    void removeAll() {
+        final Lock lock = chainLock();
+        lock.lock();
+        try {
+            while (this.next != null) {
+                this.next.unlinkLocked();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes all entries posted with <var>token</var>
+     */
+    void removeAll(@NonNull Object token) {
+        final Lock lock = chainLock();
+        lock.lock();
+        try {
+            if (index == null) {
+                return;
+            }
+            for (ChainedRef ref : index.takeToken(token)) {
+                ref.unlinkLocked();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes pooled entry from the chain, unless it was already removed or recycled
+     *
+     * @return runnable to execute or null if message carrying this generation is stale
+     */
+    @Nullable
+    Runnable claim(int generation) {
+        return claim(true, generation);
+    }
+
+    /**
+     * Removes entry from the chain, unless it was already removed
+     *
+     * @return runnable to execute or null if entry was removed meanwhile
+     */
+    @Nullable
+    Runnable claim() {
+        return claim(false, 0);
+    }
+
+    @Nullable
+    private Runnable claim(boolean matchGeneration, int generation) {
+        final Lock lock = this.lock;
+        if (lock == null) { // Never inserted
+            return null;
+        }
+        lock.lock();
+        try {
+            if (prev == null || matchGeneration && this.generation != generation) {
+                return null;
+            }
+            unlinkLocked();
+            return runnable;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void recycle() {
+        if (pool != null) {
+            pool.recycle(this);
+        }
+    }
+
+    // Must be called while holding the chain lock, with entry in the chain
+    private void unlinkLocked() {
+        //noinspection ConstantConditions
+        prev.next = next;
+        if (next != null) {
+            next.prev = prev;
+        }
+        prev = null;
+        next = null;
+        //noinspection ConstantConditions
+        index.remove(this);
+    }
+
+    boolean isLinked() {
+        final Lock lock = this.lock;
+        if (lock == null) { // Never inserted
+            return false;
+        }
+        lock.lock();
+        try {
+            return prev != null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns lock of the chain this entry is in, creating one if this entry is the head
+     * and nothing was inserted yet
+     */
+    @NonNull
+    private Lock chainLock() {
+        Lock lock = this.lock;
+        if (lock == null) {
+            synchronized (this) {
+                lock = this.lock;
+                if (lock == null) {
+                    this.lock = lock = new ReentrantLock();
+                }
+            }
+        }
+        return lock;
+    }
+
+    // Must be called while holding the chain lock
+    @NonNull
+    private Index index() {
+        if (index == null) {
+            index = new Index();
+        }
+        return index;
+    }
+
+    /**
+     * Identity keyed index of {@link ChainedRef} entries by their runnable and by their token,
+     * guarded by the chain lock
+     */
+    static class Index {
+        private final Map<Runnable, ChainedRef> mEntries = new IdentityHashMap<>(8);
+        @Nullable
+        private Map<Object, ChainedRef> mTokens; // Allocated on first entry with token
+        private int mSize; // Including entries with the same runnable
+
+        @Nullable
+        ChainedRef get(Runnable r) {
+            return mEntries.get(r);
+        }
+
+        /**
+         * Registers entry which was just inserted to the chain
+         */
+        void add(@NonNull ChainedRef ref) {
+            ref.index = this;
+            final ChainedRef same = mEntries.put(ref.runnable, ref);
+            if (same != null) {
+                ref.nextSame = same;
+                same.prevSame = ref;
+            }
+            mSize++;
+            if (ref.token != null) {
+                if (mTokens == null) {
+                    mTokens = new IdentityHashMap<>();
+                }
+                final ChainedRef sameToken = mTokens.put(ref.token, ref);
+                if (sameToken != null) {
+                    ref.nextToken = sameToken;
+                    sameToken.prevToken = ref;
+                }
+            }
+        }
+
+        /**
+         * Unregisters entry, including the list of its token if it is still there
+         */
+        void remove(@NonNull ChainedRef ref) {
+            if (ref.prevSame != null) {
+                ref.prevSame.nextSame = ref.nextSame;
+            } else if (ref.nextSame != null) {
+                mEntries.put(ref.runnable, ref.nextSame);
+            } else {
+                mEntries.remove(ref.runnable);
+            }
+            if (ref.nextSame != null) {
+                ref.nextSame.prevSame = ref.prevSame;
+            }
+            ref.prevSame = null;
+            ref.nextSame = null;
+            ref.index = null;
+            mSize--;
+            removeToken(ref);
+        }
+
+        private void removeToken(@NonNull ChainedRef ref) {
+            if (ref.token == null || mTokens == null) {
+                return;
+            }
+            if (ref.prevToken != null) {
+                ref.prevToken.nextToken = ref.nextToken;
+            } else if (mTokens.get(ref.token) == ref) {
+                if (ref.nextToken != null) {
+                    mTokens.put(ref.token, ref.nextToken);
+                } else {
+                    mTokens.remove(ref.token);
+                }
+            } else { // Already taken with the whole token
+                return;
+            }
+            if (ref.nextToken != null) {
+                ref.nextToken.prevToken = ref.prevToken;
+            }
+            ref.prevToken = null;
+            ref.nextToken = null;
+        }
+
+        /**
+         * Detaches and returns all entries of the token, most recent first
+         */
+        @NonNull
+        List<ChainedRef> takeToken(@NonNull Object token) {
+            ChainedRef ref = mTokens != null ? mTokens.remove(token) : null;
+            if (ref == null) {
+                return Collections.emptyList();
+            }
+            final List<ChainedRef> refs = new ArrayList<>();
+            while (ref != null) {
+                final ChainedRef next = ref.nextToken;
+                ref.prevToken = null;
+                ref.nextToken = null;
+                refs.add(ref);
+                ref = next;
+            }
+            return refs;
+        }
+
+        int size() {
+            return mSize;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2014 Badoo Trading Limited
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.badoo.mobile.util;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Keeps recycled {@link ChainedRef} entries
+ */
+class NodePool {
+    private static final int MAX_POOL_SIZE = 50;
+
+    @Nullable
+    final WrapperQueue queue; // Queue of pooled wrappers, for Reaper
+
+    @Nullable
+    private ChainedRef mFree; // Recycled entries are chained through next
+    private int mSize;
+
+    NodePool() {
+        this(null);
+    }
+
+    NodePool(@Nullable WrapperQueue queue) {
+        this.queue = queue;
+    }
+
+    @NonNull
+    ChainedRef obtain(@NonNull Runnable r) {
+        ChainedRef ref = null;
+        synchronized (this) {
+            if (mFree != null) {
+                ref = mFree;
+                mFree = ref.next;
+                ref.next = null;
+                mSize--;
+            }
+        }
+        if (ref == null) {
+            ref = new ChainedRef(this);
+        }
+        // Published by insertion, which takes the chain lock. Until then entry isn't in the
+        // chain, so stale messages of its previous posts can't claim it
+        ref.runnable = r;
+        return ref;
+    }
+
+    void recycle(@NonNull ChainedRef ref) {
+        // Entry is already out of the chain, next insertion publishes these under the chain lock
+        ref.generation++; // Any message still holding the wrapper becomes stale
+        //noinspection ConstantConditions
+        ref.runnable = null;
+        synchronized (this) {
+            if (mSize < MAX_POOL_SIZE) {
+                ref.next = mFree;
+                mFree = ref;
+                mSize++;
+            }
+        }
+    }
+}
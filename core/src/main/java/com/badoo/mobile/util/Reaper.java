@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2014 Badoo Trading Limited
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.badoo.mobile.util;
+
+import androidx.annotation.NonNull;
+
+import java.lang.ref.ReferenceQueue;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Removes messages of collected entries, which would otherwise wait in the queue doing nothing
+ * until their time. Entries are collected together with WeakHandler which posted them, or if
+ * they were removed from the chain while their message stayed in the queue.
+ * <p/>
+ * Runs on its own daemon thread, so posting doesn't pay for it. Each removal walks the whole
+ * message queue, so references enqueued together, e.g. all entries of collected WeakHandler,
+ * are handed over to their queue in a single batch.
+ */
+final class Reaper implements Runnable {
+    static final ReferenceQueue<ChainedRef> QUEUE = new ReferenceQueue<>();
+
+    static {
+        final Thread thread = new Thread(new Reaper(), "WeakHandler reaper");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private Reaper() {
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                reap((ReapedReference) QUEUE.remove());
+            } catch (InterruptedException e) {
+                // Keep reaping, nothing else to do for this thread
+            }
+        }
+    }
+
+    /**
+     * Reaps <var>first</var> together with every reference enqueued meanwhile, one call per queue
+     */
+    private static void reap(@NonNull ReapedReference first) {
+        final Map<WrapperQueue, List<WeakRunnable>> batches = new IdentityHashMap<>();
+        for (ReapedReference ref = first; ref != null; ref = (ReapedReference) QUEUE.poll()) {
+            List<WeakRunnable> batch = batches.get(ref.queue);
+            if (batch == null) {
+                batch = new ArrayList<>();
+                batches.put(ref.queue, batch);
+            }
+            batch.add(ref.wrapper);
+        }
+        for (Map.Entry<WrapperQueue, List<WeakRunnable>> batch : batches.entrySet()) {
+            batch.getKey().reap(batch.getValue());
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2014 Badoo Trading Limited
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.badoo.mobile.util;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.lang.ref.WeakReference;
+
+/**
+ * Wrapper which is handed over to the queue instead of posted runnable, so the queue doesn't
+ * keep runnable alive. Hard reference to the runnable is kept by its {@link ChainedRef} entry.
+ */
+class WeakRunnable implements Runnable {
+    @Nullable
+    private final WeakReference<Runnable> mDelegate; // Pooled wrappers reach runnable through reference
+    private final WeakReference<ChainedRef> mReference;
+
+    WeakRunnable(@Nullable WeakReference<Runnable> delegate, WeakReference<ChainedRef> reference) {
+        mDelegate = delegate;
+        mReference = reference;
+    }
+
+    /**
+     * Creates wrapper which gets removed from <var>queue</var> by {@link Reaper} once its entry
+     * is collected
+     */
+    WeakRunnable(@Nullable WeakReference<Runnable> delegate, @NonNull ChainedRef reference, @NonNull WrapperQueue queue) {
+        mDelegate = delegate;
+        mReference = new ReapedReference(reference, this, queue);
+    }
+
+    /**
+     * Runs pooled runnable, if its entry wasn't recycled since message was sent
+     *
+     * @param generation generation of the entry at the moment message was sent
+     * @return true if runnable was run
+     */
+    boolean run(int generation) {
+        final ChainedRef reference = mReference.get();
+        if (reference == null) {
+            return false;
+        }
+        final Runnable delegate = reference.claim(generation);
+        if (delegate == null) {
+            return false;
+        }
+        try {
+            delegate.run();
+        } finally {
+            reference.recycle();
+        }
+        return true;
+    }
+
+    /**
+     * Returns runnable this wrapper would run, or null if it was collected
+     */
+    @Nullable
+    Runnable target() {
+        if (mDelegate != null) {
+            return mDelegate.get();
+        }
+        final ChainedRef reference = mReference.get();
+        return reference != null ? reference.runnable : null;
+    }
+
+    /**
+     * Removes entry of this wrapper without running it
+     *
+     * @param generation generation of pooled entry at the moment message was sent
+     */
+    void discard(int generation) {
+        final ChainedRef reference = mReference.get();
+        if (reference == null) {
+            return;
+        }
+        if (mDelegate != null) {
+            reference.remove();
+        } else if (reference.claim(generation) != null) {
+            reference.recycle();
+        }
+    }
+
+    /**
+     * Returns true if wrapper belongs to pooled entry, which is delivered by its generation
+     */
+    boolean isPooled() {
+        return mDelegate == null && !(this instanceof ClaimingRunnable);
+    }
+
+    /**
+     * Returns true if runnable was collected, so it won't run any more
+     */
+    boolean isCollected() {
+        return mDelegate != null ? mDelegate.get() == null : mReference.get() == null;
+    }
+
+    /**
+     * Returns uptime of the post stamped on entry of this wrapper, 0 if there is none
+     */
+    long postedAt() {
+        final ChainedRef reference = mReference.get();
+        return reference != null ? reference.postedAt : 0;
+    }
+
+    /**
+     * Runs batch member, unless it was removed since batch was posted
+     *
+     * @return true if runnable was run
+     */
+    boolean runIfPending() {
+        final ChainedRef reference = mReference.get();
+        if (reference == null) {
+            return false;
+        }
+        final Runnable delegate = reference.claim();
+        if (delegate == null) {
+            return false;
+        }
+        delegate.run();
+        return true;
+    }
+
+    @Override
+    public void run() {
+        runPosted();
+    }
+
+    /**
+     * Runs runnable once message of this wrapper is delivered
+     *
+     * @return true if runnable was run
+     */
+    boolean runPosted() {
+        if (mDelegate == null) {
+            return false;
+        }
+        final Runnable delegate = mDelegate.get();
+        final ChainedRef reference = mReference.get();
+        if (reference != null) {
+            reference.remove();
+        }
+        if (delegate == null) {
+            return false;
+        }
+        delegate.run();
+        return true;
+    }
+}
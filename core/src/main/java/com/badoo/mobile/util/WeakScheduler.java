@@ -0,0 +1,277 @@
+/*
+ * Copyright (c) 2014 Badoo Trading Limited
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.badoo.mobile.util;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Platform neutral counterpart of WeakHandler, running runnables on any {@link Backend},
+ * e.g. {@link ScheduledExecutorService}, plain {@link Executor} (including executors of virtual
+ * threads) or android.os.Handler through HandlerBackend of the Android library. It doesn't depend
+ * on Android, so plain JVM modules can use it too.
+ * <p/>
+ * Backend keeps only weak wrappers of posted runnables, while scheduler keeps hard references
+ * to them in the same chain as WeakHandler does. Once scheduler is not referenced any more,
+ * its runnables can be collected and pending wrappers do nothing.
+ * <p/>
+ * Wrappers run their runnable only while it is still registered, so removal works even on
+ * backends which can't take scheduled tasks back.
+ */
+@SuppressWarnings("unused")
+public class WeakScheduler {
+
+    /**
+     * Executes wrappers of posted runnables
+     */
+    public interface Backend {
+        /**
+         * @return true if task was accepted, false if backend is shutting down
+         */
+        boolean schedule(@NonNull Runnable task, long delayMillis);
+
+        /**
+         * Removes scheduled task, if backend supports it. Removed runnables won't run anyway.
+         */
+        void cancel(@NonNull Runnable task);
+    }
+
+    private final Backend mBackend;
+    @VisibleForTesting
+    final ChainedRef mRunnables = ChainedRef.head();
+
+    public WeakScheduler(@NonNull Backend backend) {
+        //noinspection ConstantConditions
+        if (backend == null) {
+            throw new NullPointerException("Backend can't be null");
+        }
+        mBackend = backend;
+    }
+
+    /**
+     * Creates scheduler running runnables on the given <var>executor</var>.
+     */
+    @NonNull
+    public static WeakScheduler forScheduledExecutor(@NonNull ScheduledExecutorService executor) {
+        return new WeakScheduler(new ScheduledExecutorBackend(executor));
+    }
+
+    /**
+     * Creates scheduler running runnables on the given <var>executor</var>. Delayed runnables are
+     * handed over to it when they are due by a single timer thread shared by all schedulers.
+     */
+    @NonNull
+    public static WeakScheduler forExecutor(@NonNull Executor executor) {
+        return new WeakScheduler(new ExecutorBackend(executor));
+    }
+
+    /**
+     * Causes the Runnable r to be run by the backend.
+     *
+     * @return Returns true if the Runnable was successfully scheduled.
+     *         Returns false on failure, usually because backend is shutting down.
+     */
+    public final boolean post(@NonNull Runnable r) {
+        return mBackend.schedule(wrapRunnable(r), 0);
+    }
+
+    /**
+     * Causes the Runnable r to be run by the backend after the specified amount of time elapses.
+     *
+     * @return Returns true if the Runnable was successfully scheduled.
+     *         Returns false on failure, usually because backend is shutting down.
+     */
+    public final boolean postDelayed(@NonNull Runnable r, long delayMillis) {
+        return mBackend.schedule(wrapRunnable(r), Math.max(0, delayMillis));
+    }
+
+    /**
+     * Remove any pending posts of Runnable r.
+     */
+    public final void removeCallbacks(@NonNull Runnable r) {
+        ChainedRef ref;
+        while ((ref = mRunnables.removeRef(r)) != null) {
+            mBackend.cancel(ref.wrapper);
+        }
+    }
+
+    private Runnable wrapRunnable(@NonNull Runnable r) {
+        //noinspection ConstantConditions
+        if (r == null) {
+            throw new NullPointerException("Runnable can't be null");
+        }
+        final ChainedRef hardRef = new ChainedRef(r, true);
+        mRunnables.insertAfter(hardRef);
+        return hardRef.wrapper;
+    }
+
+    private static class ScheduledExecutorBackend implements Backend {
+        private final ScheduledExecutorService mExecutor;
+        private final DelayedTasks mDelayed;
+
+        ScheduledExecutorBackend(@NonNull ScheduledExecutorService executor) {
+            mExecutor = executor;
+            mDelayed = new DelayedTasks(executor);
+        }
+
+        @Override
+        public boolean schedule(@NonNull Runnable task, long delayMillis) {
+            try {
+                if (delayMillis > 0) {
+                    mDelayed.schedule(task, task, delayMillis);
+                } else {
+                    mExecutor.execute(task);
+                }
+                return true;
+            } catch (RejectedExecutionException e) {
+                return false;
+            }
+        }
+
+        @Override
+        public void cancel(@NonNull Runnable task) {
+            mDelayed.cancel(task);
+        }
+    }
+
+    private static class ExecutorBackend implements Backend {
+        private final Executor mExecutor;
+        private final DelayedTasks mDelayed = new DelayedTasks(Timer.INSTANCE);
+
+        ExecutorBackend(@NonNull Executor executor) {
+            mExecutor = executor;
+        }
+
+        @Override
+        public boolean schedule(@NonNull final Runnable task, long delayMillis) {
+            if (delayMillis > 0) {
+                try {
+                    mDelayed.schedule(task, new Runnable() {
+                        @Override
+                        public void run() {
+                            execute(task);
+                        }
+                    }, delayMillis);
+                    return true;
+                } catch (RejectedExecutionException e) {
+                    return false;
+                }
+            }
+            return execute(task);
+        }
+
+        private boolean execute(@NonNull Runnable task) {
+            try {
+                mExecutor.execute(task);
+                return true;
+            } catch (RejectedExecutionException e) {
+                return false;
+            }
+        }
+
+        @Override
+        public void cancel(@NonNull Runnable task) {
+            // Immediate tasks are already with the executor, wrapper won't run removed runnable
+            mDelayed.cancel(task);
+        }
+    }
+
+    /**
+     * Keeps futures of delayed tasks until they run, so removed ones can be cancelled instead of
+     * waiting in the executor until their time. Cancelled futures of {@link ThreadPoolExecutor}
+     * are removed from its queue right away.
+     */
+    private static class DelayedTasks {
+        private final ScheduledExecutorService mExecutor;
+        private final Map<Runnable, Future<?>> mFutures = new HashMap<>(); // Guarded by itself
+
+        DelayedTasks(@NonNull ScheduledExecutorService executor) {
+            mExecutor = executor;
+        }
+
+        /**
+         * Schedules <var>command</var>, which can be cancelled later by its <var>task</var>
+         */
+        void schedule(@NonNull Runnable task, @NonNull Runnable command, long delayMillis) {
+            final DelayedTask delayed = new DelayedTask(task, command);
+            final Future<?> future = mExecutor.schedule(delayed, delayMillis, TimeUnit.MILLISECONDS);
+            synchronized (mFutures) {
+                if (!delayed.mStarted) {
+                    mFutures.put(task, future);
+                }
+            }
+        }
+
+        void cancel(@NonNull Runnable task) {
+            final Future<?> future;
+            synchronized (mFutures) {
+                future = mFutures.remove(task);
+            }
+            if (future != null && future.cancel(false)
+                && mExecutor instanceof ThreadPoolExecutor && future instanceof Runnable) {
+                ((ThreadPoolExecutor) mExecutor).remove((Runnable) future);
+            }
+        }
+
+        private class DelayedTask implements Runnable {
+            private final Runnable mTask;
+            private final Runnable mCommand;
+            boolean mStarted; // Guarded by mFutures
+
+            DelayedTask(@NonNull Runnable task, @NonNull Runnable command) {
+                mTask = task;
+                mCommand = command;
+            }
+
+            @Override
+            public void run() {
+                synchronized (mFutures) {
+                    mStarted = true;
+                    mFutures.remove(mTask);
+                }
+                mCommand.run();
+            }
+        }
+    }
+
+    private static class Timer {
+        static final ScheduledThreadPoolExecutor INSTANCE =
+            new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(@NonNull Runnable r) {
+                    final Thread thread = new Thread(r, "WeakScheduler timer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    }
+}
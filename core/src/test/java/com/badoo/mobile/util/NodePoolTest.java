@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2014 Badoo Trading Limited
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.badoo.mobile.util;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * JVM tests for {@link com.badoo.mobile.util.NodePool}
+ */
+@SuppressWarnings("ALL")
+public class NodePoolTest {
+
+    private ChainedRef mHead;
+    private NodePool mPool;
+    private CountingRunnable mRunnable;
+
+    @Before
+    public void setUp() {
+        mHead = ChainedRef.head();
+        mPool = new NodePool();
+        mRunnable = new CountingRunnable();
+    }
+
+    @Test
+    public void recycledEntryIsReused() {
+        final ChainedRef ref = post(mRunnable);
+        ref.wrapper.run(ref.generation);
+
+        assertEquals(1, mRunnable.count);
+        assertNull(mHead.next);
+        assertSame(ref, post(mRunnable));
+    }
+
+    @Test
+    public void staleWrapperDoesNotRunNextPost() {
+        final ChainedRef ref = post(mRunnable);
+        final int staleGeneration = ref.generation;
+        mHead.removeRef(mRunnable);
+        ref.recycle();
+
+        final CountingRunnable next = new CountingRunnable();
+        assertSame(ref, post(next));
+        ref.wrapper.run(staleGeneration); // Framework delivers message sent before recycling
+
+        assertEquals(0, mRunnable.count);
+        assertEquals(0, next.count);
+        assertSame(ref, mHead.next);
+
+        ref.wrapper.run(ref.generation);
+        assertEquals(1, next.count);
+    }
+
+    @Test
+    public void removedEntryDoesNotRun() {
+        final ChainedRef ref = post(mRunnable);
+        final int generation = ref.generation;
+        mHead.removeRef(mRunnable);
+
+        ref.wrapper.run(generation);
+        assertEquals(0, mRunnable.count);
+    }
+
+    @Test
+    public void steadyStatePostingDoesNotAllocate() {
+        final com.sun.management.ThreadMXBean bean =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final long threadId = Thread.currentThread().getId();
+        for (int i = 0; i < 100000; ++i) { // Warming up pool, index and JIT
+            postAndRun();
+        }
+        bean.getThreadAllocatedBytes(threadId);
+
+        final long before = bean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 100000; ++i) {
+            postAndRun();
+        }
+        final long allocated = bean.getThreadAllocatedBytes(threadId) - before;
+
+        assertEquals(200000, mRunnable.count);
+        assertEquals("Bytes allocated by steady state posting", 0, allocated);
+    }
+
+    private void postAndRun() {
+        final ChainedRef ref = post(mRunnable);
+        ref.wrapper.run(ref.generation);
+    }
+
+    private ChainedRef post(Runnable r) {
+        final ChainedRef ref = mPool.obtain(r);
+        mHead.insertAfter(ref);
+        return ref;
+    }
+
+    private static class CountingRunnable implements Runnable {
+        int count;
+
+        @Override
+        public void run() {
+            count++;
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2014 Badoo Trading Limited
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.badoo.mobile.util;
+
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Multi-threaded tests for {@link com.badoo.mobile.util.ChainedRef}
+ */
+@SuppressWarnings("ALL")
+public class WeakHandlerChainedRefStressTest {
+
+    private static final int THREADS = 8;
+    private static final int ITERATIONS = 20000;
+
+    @Test(timeout = 60000)
+    public void postAndRemoveFromManyThreads() throws Throwable {
+        final ChainedRef head = ChainedRef.head();
+        final Runnable[] runnables = createRunnables(16, null);
+
+        runConcurrently(new Body() {
+            @Override
+            public void run(Random random) {
+                final ChainedRef ref = new ChainedRef(runnables[random.nextInt(runnables.length)]);
+                head.insertAfter(ref);
+                if (random.nextBoolean()) {
+                    ref.remove(); // As WeakRunnable does once executed
+                } else {
+                    head.remove(runnables[random.nextInt(runnables.length)]);
+                }
+            }
+        });
+        for (Runnable runnable : runnables) {
+            while (head.remove(runnable) != null) {
+                // Removing entries left after removal of random runnables
+            }
+        }
+
+        assertNull(head.next);
+    }
+
+    @Test(timeout = 60000)
+    public void pooledPostRunAndRemoveFromManyThreads() throws Throwable {
+        final ChainedRef head = ChainedRef.head();
+        final NodePool pool = new NodePool();
+        final AtomicInteger executed = new AtomicInteger();
+        final AtomicInteger removed = new AtomicInteger();
+        final AtomicInteger posted = new AtomicInteger();
+        final Runnable[] runnables = createRunnables(16, executed);
+        // Stands for MessageQueue, holding wrappers together with generation they were sent with
+        final ConcurrentLinkedQueue<long[]> queue = new ConcurrentLinkedQueue<>();
+        final Map<Long, ChainedRef> refs = new ConcurrentHashMap<>();
+        final AtomicInteger ids = new AtomicInteger();
+
+        runConcurrently(new Body() {
+            @Override
+            public void run(Random random) {
+                final ChainedRef ref = pool.obtain(runnables[random.nextInt(runnables.length)]);
+                final long[] message = new long[]{ids.incrementAndGet(), ref.generation};
+                refs.put(message[0], ref);
+                head.insertAfter(ref);
+                posted.incrementAndGet();
+                queue.add(message);
+
+                switch (random.nextInt(3)) {
+                    case 0:
+                        deliver(queue.poll(), refs);
+                        break;
+                    case 1:
+                        final ChainedRef removedRef = head.removeRef(runnables[random.nextInt(runnables.length)]);
+                        if (removedRef != null) {
+                            removed.incrementAndGet();
+                            removedRef.recycle();
+                        }
+                        break;
+                    default:
+                        // Keeping it pending for a while
+                }
+            }
+        });
+        long[] message;
+        while ((message = queue.poll()) != null) {
+            deliver(message, refs);
+        }
+
+        assertNull(head.next);
+        assertEquals(posted.get(), executed.get() + removed.get());
+        for (Runnable runnable : runnables) {
+            assertNull(head.remove(runnable));
+        }
+    }
+
+    private static void deliver(long[] message, Map<Long, ChainedRef> refs) {
+        if (message != null) {
+            refs.remove(message[0]).wrapper.run((int) message[1]);
+        }
+    }
+
+    private static Runnable[] createRunnables(int count, AtomicInteger executed) {
+        final Runnable[] runnables = new Runnable[count];
+        for (int i = 0; i < count; ++i) {
+            runnables[i] = new CountingRunnable(executed);
+        }
+        return runnables;
+    }
+
+    private static void runConcurrently(Body body) throws Throwable {
+        runConcurrently(THREADS, body);
+    }
+
+    private static void runConcurrently(int threads, final Body body) throws Throwable {
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; ++i) {
+            final Random random = new Random(i);
+            workers[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int j = 0; j < ITERATIONS; ++j) {
+                            body.run(random);
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            };
+            workers[i].start();
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+
+    private interface Body {
+        void run(Random random);
+    }
+
+    private static class CountingRunnable implements Runnable {
+        private final AtomicInteger mExecuted;
+
+        CountingRunnable(AtomicInteger executed) {
+            mExecuted = executed;
+        }
+
+        @Override
+        public void run() {
+            mExecuted.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2014 Badoo Trading Limited
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.badoo.mobile.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * JVM tests for {@link WeakScheduler}
+ */
+@SuppressWarnings("ALL")
+public class WeakSchedulerTest {
+
+    private ScheduledExecutorService mExecutor;
+
+    @Before
+    public void setUp() {
+        mExecutor = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdownNow();
+    }
+
+    @Test
+    public void postRunsOnScheduledExecutor() throws InterruptedException {
+        final WeakScheduler scheduler = WeakScheduler.forScheduledExecutor(mExecutor);
+        final CountDownLatch latch = new CountDownLatch(2);
+        scheduler.post(new CountDownRunnable(latch));
+        scheduler.postDelayed(new CountDownRunnable(latch), 50);
+
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        assertNull(scheduler.mRunnables.next);
+    }
+
+    @Test
+    public void postDelayedRunsOnExecutor() throws InterruptedException {
+        final WeakScheduler scheduler = WeakScheduler.forExecutor(mExecutor);
+        final CountDownLatch latch = new CountDownLatch(2);
+        scheduler.post(new CountDownRunnable(latch));
+        scheduler.postDelayed(new CountDownRunnable(latch), 50);
+
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        assertNull(scheduler.mRunnables.next);
+    }
+
+    @Test
+    public void removeCallbacksCancelsScheduledRunnable() throws InterruptedException {
+        final WeakScheduler scheduler = WeakScheduler.forScheduledExecutor(mExecutor);
+        final AtomicBoolean executed = new AtomicBoolean(false);
+        final Runnable removed = new Runnable() {
+            @Override
+            public void run() {
+                executed.set(true);
+            }
+        };
+        final CountDownLatch latch = new CountDownLatch(1);
+        scheduler.postDelayed(removed, 50);
+        scheduler.postDelayed(new CountDownRunnable(latch), 100);
+        scheduler.removeCallbacks(removed);
+
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        assertFalse(executed.get());
+        assertNull(scheduler.mRunnables.next);
+    }
+
+    @Test
+    public void removeCallbacksTakesDelayedTaskOutOfExecutor() {
+        final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+        try {
+            final WeakScheduler scheduler = WeakScheduler.forScheduledExecutor(executor);
+            final Runnable removed = new CountDownRunnable(new CountDownLatch(1));
+            scheduler.postDelayed(removed, 100000);
+            assertEquals(1, executor.getQueue().size());
+
+            scheduler.removeCallbacks(removed);
+
+            assertEquals(0, executor.getQueue().size());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void removeCallbacksRemovesEveryPost() {
+        final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+        try {
+            final WeakScheduler scheduler = WeakScheduler.forScheduledExecutor(executor);
+            final Runnable removed = new CountDownRunnable(new CountDownLatch(1));
+            scheduler.postDelayed(removed, 100000);
+            scheduler.postDelayed(removed, 200000);
+            assertEquals(2, executor.getQueue().size());
+
+            scheduler.removeCallbacks(removed);
+
+            assertEquals(0, executor.getQueue().size());
+            assertNull(scheduler.mRunnables.next);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void postReturnsFalseOnceExecutorIsShutDown() {
+        final WeakScheduler scheduler = WeakScheduler.forScheduledExecutor(mExecutor);
+        mExecutor.shutdown();
+
+        assertFalse(scheduler.post(new CountDownRunnable(new CountDownLatch(1))));
+    }
+
+    private static class CountDownRunnable implements Runnable {
+        private final CountDownLatch mLatch;
+
+        CountDownRunnable(CountDownLatch latch) {
+            mLatch = latch;
+        }
+
+        @Override
+        public void run() {
+            mLatch.countDown();
+        }
+    }
+}
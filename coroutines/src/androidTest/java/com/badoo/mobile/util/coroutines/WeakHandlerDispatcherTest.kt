@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2014 Badoo Trading Limited
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.badoo.mobile.util.coroutines
+
+import android.os.HandlerThread
+import androidx.test.filters.MediumTest
+import androidx.test.runner.AndroidJUnit4
+import com.badoo.mobile.util.WeakHandler
+import kotlinx.coroutines.CoroutineStart
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withContext
+import kotlinx.coroutines.withTimeoutOrNull
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertSame
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+
+/**
+ * Tests for [WeakHandlerDispatcher]
+ */
+@MediumTest
+@RunWith(AndroidJUnit4::class)
+class WeakHandlerDispatcherTest {
+
+    private lateinit var thread: HandlerThread
+    private lateinit var handler: WeakHandler
+    private lateinit var dispatcher: WeakHandlerDispatcher
+
+    @Before
+    fun setup() {
+        thread = HandlerThread("test")
+        thread.start()
+        handler = WeakHandler(thread.looper)
+        dispatcher = handler.asCoroutineDispatcher()
+    }
+
+    @After
+    fun tearDown() {
+        thread.looper.quit()
+    }
+
+    @Test
+    fun dispatchesToLooperThread() = runBlocking {
+        val ranOn = withContext(dispatcher) {
+            delay(10)
+            Thread.currentThread()
+        }
+        assertSame(thread, ranOn)
+        assertEquals(0, handler.pendingCount)
+    }
+
+    @Test
+    fun cancelledDelayIsRemovedFromQueue() = runBlocking {
+        val job = launch(dispatcher, CoroutineStart.UNDISPATCHED) {
+            delay(100000)
+        }
+        assertEquals(1, handler.pendingCount)
+
+        job.cancel()
+        job.join()
+        assertEquals(0, handler.pendingCount)
+    }
+
+    @Test
+    fun timeoutRunsOnHandler() = runBlocking {
+        val result = withContext(dispatcher) {
+            withTimeoutOrNull(10) {
+                delay(100000)
+                "not timed out"
+            }
+        }
+        assertNull(result)
+        assertEquals(0, handler.pendingCount)
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2014 Badoo Trading Limited
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.badoo.mobile.util.coroutines
+
+import com.badoo.mobile.util.WeakHandler
+import kotlinx.coroutines.CancellableContinuation
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.Delay
+import kotlinx.coroutines.DisposableHandle
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.InternalCoroutinesApi
+import kotlinx.coroutines.NonDisposableHandle
+import kotlinx.coroutines.cancel
+import kotlin.coroutines.CoroutineContext
+
+/**
+ * Dispatches coroutines to the looper of [handler] and resumes them after [kotlinx.coroutines.delay]
+ * from there.
+ *
+ * Blocks are posted to [handler] as they are, so its message queue references them only weakly,
+ * like any other runnable posted to WeakHandler. Cancelled delays are removed from the queue
+ * right away.
+ */
+@OptIn(InternalCoroutinesApi::class, ExperimentalCoroutinesApi::class)
+class WeakHandlerDispatcher(private val handler: WeakHandler) : CoroutineDispatcher(), Delay {
+
+    override fun dispatch(context: CoroutineContext, block: Runnable) {
+        if (!handler.post(block)) {
+            rejected(context, block)
+        }
+    }
+
+    override fun scheduleResumeAfterDelay(timeMillis: Long, continuation: CancellableContinuation<Unit>) {
+        val resume = ResumeTask(continuation)
+        if (handler.postDelayed(resume, timeMillis.coerceAtMost(MAX_DELAY))) {
+            continuation.invokeOnCancellation(resume)
+        } else {
+            rejected(continuation.context, resume)
+        }
+    }
+
+    override fun invokeOnTimeout(timeMillis: Long, block: Runnable, context: CoroutineContext): DisposableHandle {
+        if (handler.postDelayed(block, timeMillis.coerceAtMost(MAX_DELAY))) {
+            return DisposableHandle { handler.removeCallbacks(block) }
+        }
+        rejected(context, block)
+        return NonDisposableHandle
+    }
+
+    override fun equals(other: Any?): Boolean = other is WeakHandlerDispatcher && other.handler === handler
+
+    override fun hashCode(): Int = System.identityHashCode(handler)
+
+    override fun toString(): String = "WeakHandlerDispatcher(${handler.looper})"
+
+    /**
+     * Looper is exiting, so let the coroutine finish cancelling elsewhere, as Dispatchers.Main does
+     */
+    private fun rejected(context: CoroutineContext, block: Runnable) {
+        context.cancel(CancellationException("Looper of $this is exiting"))
+        Dispatchers.IO.dispatch(context, block)
+    }
+
+    /**
+     * Resumes delayed continuation and removes itself from the queue once it is cancelled
+     */
+    private inner class ResumeTask(
+        private val continuation: CancellableContinuation<Unit>
+    ) : Runnable, (Throwable?) -> Unit {
+
+        override fun run() {
+            with(continuation) { resumeUndispatched(Unit) }
+        }
+
+        override fun invoke(cause: Throwable?) {
+            handler.removeCallbacks(this)
+        }
+    }
+
+    private companion object {
+        // Keeps uptime of the message from overflowing
+        const val MAX_DELAY = Long.MAX_VALUE / 2
+    }
+}
+
+/**
+ * Returns [WeakHandlerDispatcher] running coroutines on the looper of this handler
+ */
+fun WeakHandler.asCoroutineDispatcher(): WeakHandlerDispatcher = WeakHandlerDispatcher(this)
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2014 Badoo Trading Limited
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.badoo.mobile.util.lifecycle;
+
+import android.os.HandlerThread;
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+import androidx.lifecycle.Lifecycle;
+import androidx.lifecycle.LifecycleOwner;
+import androidx.lifecycle.LifecycleRegistry;
+import androidx.test.filters.MediumTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Tests for {@link LifecycleWeakHandler}
+ */
+@SuppressWarnings("ALL")
+@MediumTest
+@RunWith(AndroidJUnit4.class)
+public class LifecycleWeakHandlerTest {
+
+    private HandlerThread mThread;
+    private TestOwner mOwner;
+    private LifecycleWeakHandler mHandler;
+
+    @Before
+    public void setup() {
+        mThread = new HandlerThread("test");
+        mThread.start();
+        mOwner = new TestOwner();
+        mOwner.registry.handleLifecycleEvent(Lifecycle.Event.ON_START);
+        mHandler = new LifecycleWeakHandler(mOwner, mThread.getLooper());
+    }
+
+    @After
+    public void tearDown() {
+        mThread.getLooper().quit();
+    }
+
+    @Test
+    public void destroyRemovesPendingRunnables() {
+        final AtomicBoolean executed = new AtomicBoolean(false);
+        mHandler.postDelayed(new FlagRunnable(executed), 100);
+        mOwner.registry.handleLifecycleEvent(Lifecycle.Event.ON_DESTROY);
+
+        SystemClock.sleep(300);
+        assertFalse(executed.get());
+        assertTrue(mHandler.getPendingCount() == 0);
+        assertFalse(mHandler.isPaused());
+    }
+
+    @Test
+    public void stopPausesUntilStart() {
+        final AtomicBoolean executed = new AtomicBoolean(false);
+        mOwner.registry.handleLifecycleEvent(Lifecycle.Event.ON_STOP);
+        mHandler.post(new FlagRunnable(executed));
+
+        SystemClock.sleep(100);
+        assertFalse(executed.get());
+
+        mOwner.registry.handleLifecycleEvent(Lifecycle.Event.ON_START);
+        SystemClock.sleep(100);
+        assertTrue(executed.get());
+    }
+
+    private static class TestOwner implements LifecycleOwner {
+        final LifecycleRegistry registry = new LifecycleRegistry(this);
+
+        @NonNull
+        @Override
+        public Lifecycle getLifecycle() {
+            return registry;
+        }
+    }
+
+    private static class FlagRunnable implements Runnable {
+        private final AtomicBoolean mFlag;
+
+        FlagRunnable(AtomicBoolean flag) {
+            mFlag = flag;
+        }
+
+        @Override
+        public void run() {
+            mFlag.set(true);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2014 Badoo Trading Limited
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.badoo.mobile.util.lifecycle;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.lifecycle.Lifecycle;
+import androidx.lifecycle.LifecycleEventObserver;
+import androidx.lifecycle.LifecycleOwner;
+
+import com.badoo.mobile.util.WeakHandler;
+
+/**
+ * {@link WeakHandler} bound to the lifecycle of {@link LifecycleOwner}, like Activity or Fragment.
+ * <p/>
+ * Once owner is destroyed, all pending runnables and messages are removed, so there is no need
+ * to call {@link #removeCallbacksAndMessages(Object)} by hand. While owner is stopped,
+ * the handler is paused, see {@link #pause()}, unless {@link #setPauseWhenStopped(boolean)}
+ * disables it.
+ * <p/>
+ * Has to be created on the main thread, as lifecycle observers are added there.
+ * Posts made after owner was destroyed are not removed.
+ */
+@SuppressWarnings("unused")
+public class LifecycleWeakHandler extends WeakHandler implements LifecycleEventObserver {
+    private volatile boolean mPauseWhenStopped = true;
+
+    /**
+     * Associates this handler with the {@link Looper} for the current thread.
+     */
+    public LifecycleWeakHandler(@NonNull LifecycleOwner owner) {
+        super();
+        owner.getLifecycle().addObserver(this);
+    }
+
+    /**
+     * Associates this handler with the {@link Looper} for the current thread and takes
+     * a callback interface in which you can handle messages.
+     */
+    public LifecycleWeakHandler(@NonNull LifecycleOwner owner, @Nullable Handler.Callback callback) {
+        super(callback);
+        owner.getLifecycle().addObserver(this);
+    }
+
+    /**
+     * Use the provided {@link Looper} instead of the default one.
+     */
+    public LifecycleWeakHandler(@NonNull LifecycleOwner owner, @NonNull Looper looper) {
+        super(looper);
+        owner.getLifecycle().addObserver(this);
+    }
+
+    /**
+     * Use the provided {@link Looper} instead of the default one and take a callback
+     * interface in which to handle messages.
+     */
+    public LifecycleWeakHandler(@NonNull LifecycleOwner owner, @NonNull Looper looper,
+                                @NonNull Handler.Callback callback) {
+        super(looper, callback);
+        owner.getLifecycle().addObserver(this);
+    }
+
+    /**
+     * Enables or disables pausing of this handler while owner is stopped, enabled by default.
+     */
+    public final void setPauseWhenStopped(boolean pause) {
+        mPauseWhenStopped = pause;
+    }
+
+    @Override
+    public void onStateChanged(@NonNull LifecycleOwner source, @NonNull Lifecycle.Event event) {
+        switch (event) {
+            case ON_START:
+                resume();
+                break;
+            case ON_STOP:
+                if (mPauseWhenStopped) {
+                    pause();
+                }
+                break;
+            case ON_DESTROY:
+                source.getLifecycle().removeObserver(this);
+                removeCallbacksAndMessages(null);
+                resume(); // Nothing is parked any more, just don't stay paused
+                break;
+            default:
+                break;
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2014 Badoo Trading Limited
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.badoo.mobile.util.rxjava;
+
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import androidx.test.filters.MediumTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.badoo.mobile.util.WeakHandler;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import io.reactivex.rxjava3.core.Scheduler;
+import io.reactivex.rxjava3.disposables.Disposable;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Tests for {@link WeakHandlerScheduler}
+ */
+@SuppressWarnings("ALL")
+@MediumTest
+@RunWith(AndroidJUnit4.class)
+public class WeakHandlerSchedulerTest {
+
+    private HandlerThread mThread;
+    private WeakHandler mHandler;
+    private WeakHandlerScheduler mScheduler;
+
+    @Before
+    public void setup() {
+        mThread = new HandlerThread("test");
+        mThread.start();
+        mHandler = new WeakHandler(mThread.getLooper());
+        mScheduler = new WeakHandlerScheduler(mHandler);
+    }
+
+    @After
+    public void tearDown() {
+        mThread.getLooper().quit();
+    }
+
+    @Test
+    public void scheduleDirectRunsOnLooperThread() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicBoolean onLooper = new AtomicBoolean(false);
+        mScheduler.scheduleDirect(new Runnable() {
+            @Override
+            public void run() {
+                onLooper.set(Looper.myLooper() == mThread.getLooper());
+                latch.countDown();
+            }
+        });
+
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        assertTrue(onLooper.get());
+    }
+
+    @Test
+    public void disposeRemovesPendingTask() {
+        final AtomicBoolean executed = new AtomicBoolean(false);
+        final Disposable disposable = mScheduler.scheduleDirect(new FlagRunnable(executed), 100, TimeUnit.MILLISECONDS);
+        assertEquals(1, mHandler.getPendingCount());
+
+        disposable.dispose();
+
+        assertTrue(disposable.isDisposed());
+        assertEquals(0, mHandler.getPendingCount());
+        SystemClock.sleep(300);
+        assertFalse(executed.get());
+    }
+
+    @Test
+    public void workerDisposeRemovesAllItsTasks() {
+        final AtomicBoolean first = new AtomicBoolean(false);
+        final AtomicBoolean second = new AtomicBoolean(false);
+        final Scheduler.Worker worker = mScheduler.createWorker();
+        worker.schedule(new FlagRunnable(first), 100, TimeUnit.MILLISECONDS);
+        worker.schedule(new FlagRunnable(second), 200, TimeUnit.MILLISECONDS);
+        assertEquals(2, mHandler.getPendingCount());
+
+        worker.dispose();
+
+        assertEquals(0, mHandler.getPendingCount());
+        assertTrue(worker.schedule(new FlagRunnable(first)).isDisposed());
+        SystemClock.sleep(400);
+        assertFalse(first.get());
+        assertFalse(second.get());
+    }
+
+    @Test
+    public void taskIsDisposedIfLooperIsExiting() {
+        mThread.getLooper().quit();
+
+        assertTrue(mScheduler.scheduleDirect(new FlagRunnable(new AtomicBoolean())).isDisposed());
+        assertTrue(mScheduler.createWorker().schedule(new FlagRunnable(new AtomicBoolean())).isDisposed());
+        assertEquals(0, mHandler.getPendingCount());
+    }
+
+    @Test
+    public void pendingWorkerTaskDoesNotRetainHandler() {
+        WeakHandler handler = new WeakHandler(mThread.getLooper());
+        final WeakReference<WeakHandler> probe = new WeakReference<>(handler);
+        new WeakHandlerScheduler(handler).createWorker()
+            .schedule(new FlagRunnable(new AtomicBoolean()), 100, TimeUnit.SECONDS);
+        handler = null;
+        Runtime.getRuntime().gc();
+
+        assertNull(probe.get());
+    }
+
+    private static class FlagRunnable implements Runnable {
+        private final AtomicBoolean mFlag;
+
+        FlagRunnable(AtomicBoolean flag) {
+            mFlag = flag;
+        }
+
+        @Override
+        public void run() {
+            mFlag.set(true);
+        }
+    }
+}
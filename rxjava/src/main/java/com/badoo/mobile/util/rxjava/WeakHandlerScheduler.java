@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2014 Badoo Trading Limited
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.badoo.mobile.util.rxjava;
+
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+
+import com.badoo.mobile.util.WeakHandler;
+
+import java.util.concurrent.TimeUnit;
+
+import io.reactivex.rxjava3.core.Scheduler;
+import io.reactivex.rxjava3.disposables.Disposable;
+import io.reactivex.rxjava3.plugins.RxJavaPlugins;
+
+/**
+ * RxJava {@link Scheduler} running tasks on the looper of a {@link WeakHandler}.
+ * <p/>
+ * Each scheduled task is a single object, posted to the handler as it is and disposed by removing
+ * it from the handler right away. The message queue references it only weakly, like any other
+ * runnable posted to WeakHandler.
+ */
+public final class WeakHandlerScheduler extends Scheduler {
+
+    private final WeakHandler mHandler;
+
+    public WeakHandlerScheduler(@NonNull WeakHandler handler) {
+        //noinspection ConstantConditions
+        if (handler == null) {
+            throw new NullPointerException("Handler can't be null");
+        }
+        mHandler = handler;
+    }
+
+    @NonNull
+    @Override
+    public Disposable scheduleDirect(@NonNull Runnable run, long delay, @NonNull TimeUnit unit) {
+        final ScheduledTask task = new ScheduledTask(mHandler, RxJavaPlugins.onSchedule(run));
+        if (!mHandler.postDelayed(task, Math.max(0, unit.toMillis(delay)))) { // Looper is exiting
+            mHandler.removeCallbacks(task);
+            return Disposable.disposed();
+        }
+        return task;
+    }
+
+    @NonNull
+    @Override
+    public Worker createWorker() {
+        return new HandlerWorker(mHandler);
+    }
+
+    /**
+     * Posts its tasks with a common token, so disposing it removes all of them at once.
+     * Token ends up in the message queue, so it must not reference the handler.
+     */
+    private static final class HandlerWorker extends Worker {
+        private final WeakHandler mHandler;
+        private final Object mToken = new Object();
+        private volatile boolean mDisposed;
+
+        HandlerWorker(@NonNull WeakHandler handler) {
+            mHandler = handler;
+        }
+
+        @NonNull
+        @Override
+        public Disposable schedule(@NonNull Runnable run, long delay, @NonNull TimeUnit unit) {
+            if (mDisposed) {
+                return Disposable.disposed();
+            }
+            final ScheduledTask task = new ScheduledTask(mHandler, RxJavaPlugins.onSchedule(run));
+            final long uptimeMillis = SystemClock.uptimeMillis() + Math.max(0, unit.toMillis(delay));
+            if (!mHandler.postAtTime(task, mToken, uptimeMillis)) { // Looper is exiting
+                mHandler.removeCallbacks(task);
+                return Disposable.disposed();
+            }
+            if (mDisposed) { // Disposed meanwhile, removal might have missed the task
+                mHandler.removeCallbacks(task);
+                return Disposable.disposed();
+            }
+            return task;
+        }
+
+        @Override
+        public void dispose() {
+            mDisposed = true;
+            mHandler.removeCallbacksAndMessages(mToken);
+        }
+
+        @Override
+        public boolean isDisposed() {
+            return mDisposed;
+        }
+    }
+
+    private static final class ScheduledTask implements Runnable, Disposable {
+        private final WeakHandler mHandler;
+        private final Runnable mDelegate;
+        private volatile boolean mDisposed;
+
+        ScheduledTask(@NonNull WeakHandler handler, @NonNull Runnable delegate) {
+            mHandler = handler;
+            mDelegate = delegate;
+        }
+
+        @Override
+        public void run() {
+            try {
+                mDelegate.run();
+            } catch (Throwable e) {
+                RxJavaPlugins.onError(e);
+            }
+        }
+
+        @Override
+        public void dispose() {
+            mDisposed = true;
+            mHandler.removeCallbacks(this);
+        }
+
+        @Override
+        public boolean isDisposed() {
+            return mDisposed;
+        }
+    }
+}
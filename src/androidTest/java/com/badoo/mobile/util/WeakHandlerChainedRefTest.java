@@ -7,14 +7,12 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
-
+import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertNull;
 import static junit.framework.Assert.assertSame;
 
 /**
- * Tests for {@link com.badoo.mobile.util.WeakHandler.ChainedRef}
+ * Tests for {@link com.badoo.mobile.util.ChainedRef}
  *
  * @author Dmytro Voronkevych
  */
@@ -26,36 +24,33 @@ public class WeakHandlerChainedRefTest {
     private Runnable mHeadRunnable;
     private Runnable mFirstRunnable;
     private Runnable mSecondRunnable;
-    private Lock mLock;
-    private WeakHandler.ChainedRef mRefHead;
-    private WeakHandler.ChainedRef mSecond;
-    private WeakHandler.ChainedRef mFirst;
-    private WeakHandler.WeakRunnable mHeadWeakRunnable;
-    private WeakHandler.WeakRunnable mFirstWeakRunnable;
-    private WeakHandler.WeakRunnable mSecondWeakRunnable;
+    private ChainedRef mRefHead;
+    private ChainedRef mSecond;
+    private ChainedRef mFirst;
+    private WeakRunnable mHeadWeakRunnable;
+    private WeakRunnable mFirstWeakRunnable;
+    private WeakRunnable mSecondWeakRunnable;
 
     // Creates linked list refHead <-> first <-> second
     @Before
     public void setUp() {
-        mLock = new ReentrantLock();
-
         mHeadRunnable = new DummyRunnable();
         mFirstRunnable = new DummyRunnable();
         mSecondRunnable = new DummyRunnable();
 
-        mRefHead = new WeakHandler.ChainedRef(mLock, mHeadRunnable) {
+        mRefHead = new ChainedRef(mHeadRunnable) {
             @Override
             public String toString() {
                 return "refHead";
             }
         };
-        mFirst = new WeakHandler.ChainedRef(mLock, mFirstRunnable) {
+        mFirst = new ChainedRef(mFirstRunnable) {
             @Override
             public String toString() {
                 return "second";
             }
         };
-        mSecond = new WeakHandler.ChainedRef(mLock, mSecondRunnable) {
+        mSecond = new ChainedRef(mSecondRunnable) {
             @Override
             public String toString() {
                 return "first";
@@ -131,6 +126,57 @@ public class WeakHandlerChainedRefTest {
         assertSame(mRefHead, mFirst.prev);
     }
 
+    @Test
+    public void removeSameRunnableRemovesMostRecentFirst() {
+        final ChainedRef again = new ChainedRef(mSecondRunnable);
+        mRefHead.insertAfter(again);
+
+        assertSame(again.wrapper, mRefHead.remove(mSecondRunnable));
+        assertSame(mSecondWeakRunnable, mRefHead.remove(mSecondRunnable));
+        assertNull(mRefHead.remove(mSecondRunnable));
+        assertSame(mFirst, mRefHead.next);
+        assertNull(mFirst.next);
+    }
+
+    @Test
+    public void removedEntryIsNotFoundByRunnable() {
+        mFirst.remove();
+        assertNull(mRefHead.remove(mFirstRunnable));
+        assertSame(mSecond, mRefHead.next);
+    }
+
+    @Test
+    public void removeOldestOfManyByRunnable() {
+        final Runnable oldest = new DummyRunnable();
+        final ChainedRef head = ChainedRef.head();
+        final ChainedRef tail = new ChainedRef(oldest);
+        head.insertAfter(tail);
+        for (int i = 0; i < 1000; ++i) {
+            head.insertAfter(new ChainedRef(new DummyRunnable()));
+        }
+
+        assertSame(tail.wrapper, head.remove(oldest));
+        assertNull(tail.prev);
+        assertEquals(1000, head.indexedCount());
+        assertNull(head.remove(oldest));
+    }
+
+    @Test
+    public void insertAllAfterKeepsOrder() {
+        final ChainedRef third = new ChainedRef(new DummyRunnable());
+        final ChainedRef fourth = new ChainedRef(new DummyRunnable());
+        mRefHead.insertAllAfter(new ChainedRef[] {third, fourth});
+
+        assertSame(third, mRefHead.next);
+        assertSame(fourth, third.next);
+        assertSame(mFirst, fourth.next);
+        assertSame(fourth, mFirst.prev);
+        assertSame(third, fourth.prev);
+        assertSame(mRefHead, third.prev);
+        assertSame(third.wrapper, mRefHead.remove(third.runnable));
+        assertSame(mRefHead, fourth.prev);
+    }
+
     private class DummyRunnable implements Runnable {
         @Override
         public void run() {
@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2014 Badoo Trading Limited
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.badoo.mobile.util;
+
+import android.os.Process;
+import android.os.SystemClock;
+
+import androidx.test.filters.MediumTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link com.badoo.mobile.util.WeakHandlerPool}
+ */
+@SuppressWarnings("ALL")
+@MediumTest
+@RunWith(AndroidJUnit4.class)
+public class WeakHandlerPoolRoutingTest {
+
+    private static final int SIZE = 4;
+
+    private WeakHandlerPool mPool;
+
+    @Before
+    public void setup() {
+        mPool = new WeakHandlerPool("pool", SIZE, Process.THREAD_PRIORITY_BACKGROUND);
+    }
+
+    @After
+    public void tearDown() {
+        mPool.quit();
+    }
+
+    @Test
+    public void postsWithSameKeyRunInOrderOnOneThread() throws InterruptedException {
+        final int count = 100;
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        final Set<Thread> threads = Collections.synchronizedSet(new HashSet<Thread>());
+        final CountDownLatch latch = new CountDownLatch(count);
+        final Object key = "key";
+        for (int i = 0; i < count; ++i) {
+            final int index = i;
+            mPool.post(key, new Runnable() {
+                @Override
+                public void run() {
+                    order.add(index);
+                    threads.add(Thread.currentThread());
+                    latch.countDown();
+                }
+            });
+        }
+
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        assertEquals(1, threads.size());
+        for (int i = 0; i < count; ++i) {
+            assertEquals(i, (int) order.get(i));
+        }
+    }
+
+    @Test
+    public void differentKeysSpreadAcrossShards() throws InterruptedException {
+        final Set<Thread> threads = Collections.synchronizedSet(new HashSet<Thread>());
+        final CountDownLatch latch = new CountDownLatch(SIZE);
+        for (int i = 0; i < SIZE; ++i) {
+            mPool.post(i, new Runnable() {
+                @Override
+                public void run() {
+                    threads.add(Thread.currentThread());
+                    latch.countDown();
+                }
+            });
+        }
+
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        assertEquals(SIZE, threads.size());
+        assertSame(mPool.handlerFor(1), mPool.handlerFor(Integer.valueOf(1)));
+    }
+
+    @Test
+    public void removeCallbacksAndMessagesReachesAllShards() {
+        final AtomicBoolean executed = new AtomicBoolean(false);
+        final Object token = new Object();
+        for (int i = 0; i < SIZE; ++i) {
+            mPool.postAtTime(i, new Runnable() {
+                @Override
+                public void run() {
+                    executed.set(true);
+                }
+            }, token, SystemClock.uptimeMillis() + 50);
+        }
+        assertEquals(SIZE, mPool.getPendingCount());
+
+        mPool.removeCallbacksAndMessages(token);
+        SystemClock.sleep(100);
+
+        assertEquals(0, mPool.getPendingCount());
+        assertFalse(executed.get());
+    }
+
+    @Test
+    public void removeCallbacksWithoutKeyReachesAllShards() {
+        final AtomicBoolean executed = new AtomicBoolean(false);
+        final Runnable runnable = new Runnable() {
+            @Override
+            public void run() {
+                executed.set(true);
+            }
+        };
+        for (int i = 0; i < SIZE; ++i) {
+            mPool.postDelayed(i, runnable, 50);
+        }
+
+        mPool.removeCallbacks(runnable);
+        SystemClock.sleep(100);
+
+        assertEquals(0, mPool.getPendingCount());
+        assertFalse(executed.get());
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2014 Badoo Trading Limited
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.badoo.mobile.util;
+
+import android.os.HandlerThread;
+import android.os.SystemClock;
+
+import androidx.test.filters.LargeTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Screens which post timeouts with tokens and clear them over and over must not grow
+ * the registry of {@link WeakHandler}.
+ */
+@SuppressWarnings("ALL")
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class WeakHandlerRegistryStressTest {
+
+    private static final int THREADS = 4;
+    private static final int ROUNDS = 2000;
+    private static final int POSTS_PER_ROUND = 10;
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+
+    private HandlerThread mThread;
+    private WeakHandler mHandler;
+
+    @Before
+    public void setup() {
+        mThread = new HandlerThread("test");
+        mThread.start();
+        mHandler = new WeakHandler(mThread.getLooper());
+    }
+
+    @After
+    public void tearDown() {
+        mHandler.getLooper().quit();
+    }
+
+    @Test
+    public void tokenAndClearAllRemovalsKeepRegistryBounded() throws Throwable {
+        final AtomicInteger maxPending = new AtomicInteger();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final CountDownLatch done = new CountDownLatch(THREADS);
+        for (int t = 0; t < THREADS; ++t) {
+            final int seed = t;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        churn(new Random(seed), maxPending);
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+
+        assertTrue(done.await(2, TimeUnit.MINUTES));
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        mHandler.removeCallbacksAndMessages(null);
+
+        // Each thread keeps at most one round of its posts between removals
+        assertTrue("Registry grew to " + maxPending.get(), maxPending.get() <= THREADS * POSTS_PER_ROUND * 2);
+        assertEquals(0, mHandler.getPendingCount());
+        assertNull(mHandler.mRunnables.next);
+    }
+
+    private void churn(Random random, AtomicInteger maxPending) {
+        final List<Runnable> runnables = new ArrayList<>();
+        for (int round = 0; round < ROUNDS; ++round) {
+            final Object token = new Object();
+            runnables.clear();
+            for (int i = 0; i < POSTS_PER_ROUND; ++i) {
+                final Runnable runnable = new DummyRunnable();
+                runnables.add(runnable);
+                mHandler.postAtTime(runnable, token, SystemClock.uptimeMillis() + HOUR);
+            }
+            final int pending = mHandler.getPendingCount();
+            if (pending > maxPending.get()) {
+                maxPending.set(pending);
+            }
+            switch (random.nextInt(3)) {
+                case 0:
+                    mHandler.removeCallbacksAndMessages(token);
+                    break;
+                case 1:
+                    for (Runnable runnable : runnables) {
+                        mHandler.removeCallbacks(runnable, token);
+                    }
+                    break;
+                default:
+                    mHandler.removeCallbacksAndMessages(null);
+                    break;
+            }
+        }
+    }
+
+    private static class DummyRunnable implements Runnable {
+        @Override
+        public void run() {
+        }
+    }
+}
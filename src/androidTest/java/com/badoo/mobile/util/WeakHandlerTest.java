@@ -20,32 +20,47 @@
  */
 package com.badoo.mobile.util;
 
+import android.os.Build;
+import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.Message;
 import android.os.SystemClock;
 
 import androidx.test.filters.FlakyTest;
 import androidx.test.filters.MediumTest;
 import androidx.test.runner.AndroidJUnit4;
 
-import com.badoo.mobile.util.WeakHandler.ChainedRef;
-
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
+import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
 import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+import static org.junit.Assume.assumeTrue;
 
 /**
  * Unit tests for {@link com.badoo.mobile.util.WeakHandler}
@@ -116,6 +131,28 @@ public class WeakHandlerTest {
         assertTrue(elapsedTime > 300);
     }
 
+    @Test
+    public void removeCallbacksRemovesEveryPost() throws InterruptedException {
+        final AtomicInteger executed = new AtomicInteger();
+        final Runnable r = new Runnable() {
+            @Override
+            public void run() {
+                executed.incrementAndGet();
+            }
+        };
+        final CountDownLatch blocker = blockLooper();
+        mHandler.post(r);
+        mHandler.post(r, WeakHandler.Priority.IDLE);
+        mHandler.postDelayed(r, 50);
+        mHandler.removeCallbacks(r);
+        blocker.countDown();
+
+        SystemClock.sleep(150);
+        assertEquals(0, executed.get());
+        assertFalse(mHandler.hasCallbacks(r));
+        assertNull(mHandler.mRunnables.next);
+    }
+
     @Test(timeout = 30000)
     public void concurrentRemoveAndExecute() throws Throwable {
         final int repeatCount = 100;
@@ -187,6 +224,1069 @@ public class WeakHandlerTest {
         assertTrue("All runnables should present in chain, however we still haven't found " + added, added.isEmpty());
     }
 
+    @Test
+    public void weakMessageDeliversObj() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicReference<Object> received = new AtomicReference<>();
+        final Handler.Callback callback = new Handler.Callback() {
+            @Override
+            public boolean handleMessage(Message msg) {
+                received.set(msg.obj);
+                latch.countDown();
+                return true;
+            }
+        };
+        final WeakHandler handler = new WeakHandler(mThread.getLooper(), callback);
+        handler.setWeakMessages(true);
+        final Object obj = new Object();
+
+        handler.sendMessage(Message.obtain(null, 1, obj));
+
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        assertSame(obj, received.get());
+    }
+
+    @Test
+    public void weakMessageIsMatchedByObj() {
+        mHandler.setWeakMessages(true);
+        final Object obj = new Object();
+
+        mHandler.sendMessageDelayed(Message.obtain(null, 1, obj), 10000);
+        assertTrue(mHandler.hasMessages(1, obj));
+        assertFalse(mHandler.hasMessages(1, new Object()));
+
+        mHandler.removeMessages(1, obj);
+        assertFalse(mHandler.hasMessages(1, obj));
+    }
+
+    @Test
+    public void weakMessageIsDroppedOnceObjCollected() {
+        final AtomicBoolean delivered = new AtomicBoolean(false);
+        final Handler.Callback callback = new Handler.Callback() {
+            @Override
+            public boolean handleMessage(Message msg) {
+                delivered.set(true);
+                return true;
+            }
+        };
+        final WeakHandler handler = new WeakHandler(mThread.getLooper(), callback);
+        handler.setWeakMessages(true);
+        Object obj = new Object();
+        final WeakReference<Object> probe = new WeakReference<>(obj);
+
+        handler.sendMessageDelayed(Message.obtain(null, 1, obj), 300);
+        obj = null;
+        Runtime.getRuntime().gc();
+        assumeTrue("Object wasn't collected", probe.get() == null);
+        SystemClock.sleep(600);
+
+        assertFalse(delivered.get());
+        assertNull(probe.get());
+    }
+
+    @Test
+    public void postCoalescedRunsLastRunnableOnceBurstIsOver() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicInteger executed = new AtomicInteger();
+        final AtomicInteger last = new AtomicInteger();
+        final long startTime = SystemClock.elapsedRealtime();
+        for (int i = 0; i < 10; ++i) {
+            final int num = i;
+            mHandler.postCoalesced(new Runnable() {
+                @Override
+                public void run() {
+                    executed.incrementAndGet();
+                    last.set(num);
+                    latch.countDown();
+                }
+            }, "key", 200);
+            SystemClock.sleep(20);
+        }
+
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        SystemClock.sleep(300);
+        assertEquals(1, executed.get());
+        assertEquals(9, last.get());
+        // Last call was made after ~200ms, so it should run ~200ms after it
+        assertTrue(SystemClock.elapsedRealtime() - startTime >= 400);
+    }
+
+    @Test
+    public void postThrottledRunsLatestRunnableOncePerInterval() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicInteger executed = new AtomicInteger();
+        final AtomicInteger last = new AtomicInteger();
+        for (int i = 0; i < 5; ++i) {
+            final int num = i;
+            mHandler.postThrottled(new Runnable() {
+                @Override
+                public void run() {
+                    executed.incrementAndGet();
+                    last.set(num);
+                    latch.countDown();
+                }
+            }, "key", 200);
+        }
+
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        assertEquals(1, executed.get());
+        assertEquals(4, last.get());
+    }
+
+    @Test
+    public void removeCoalesced() {
+        final AtomicBoolean executed = new AtomicBoolean(false);
+        mHandler.postCoalesced(new Runnable() {
+            @Override
+            public void run() {
+                executed.set(true);
+            }
+        }, "key", 100);
+        mHandler.removeCoalesced("key");
+
+        SystemClock.sleep(300);
+        assertFalse(executed.get());
+    }
+
+    @Test
+    public void postCoalescedDoesNotWaitForLockOnHandler() throws InterruptedException {
+        final CountDownLatch locked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Thread holder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mHandler) {
+                    locked.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException ignored) {
+                    }
+                }
+            }
+        });
+        holder.start();
+        assertTrue(locked.await(1, TimeUnit.SECONDS));
+        final CountDownLatch latch = new CountDownLatch(1);
+        final Thread poster = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                mHandler.postCoalesced(new Runnable() {
+                    @Override
+                    public void run() {
+                        latch.countDown();
+                    }
+                }, "key", 0);
+            }
+        });
+        poster.start();
+        try {
+            assertTrue(latch.await(1, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+            holder.join();
+            poster.join();
+        }
+    }
+
+    @Test
+    public void postBatchRunsRunnablesInOrder() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(5);
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        final List<Runnable> runnables = new ArrayList<>();
+        for (int i = 0; i < 5; ++i) {
+            final int num = i;
+            runnables.add(new Runnable() {
+                @Override
+                public void run() {
+                    order.add(num);
+                    latch.countDown();
+                }
+            });
+        }
+        mHandler.postBatch(runnables);
+
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4), order);
+        assertNull(mHandler.mRunnables.next);
+    }
+
+    @Test
+    public void removeCallbacksSkipsBatchMember() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicBoolean removedExecuted = new AtomicBoolean(false);
+        final Runnable removed = new Runnable() {
+            @Override
+            public void run() {
+                removedExecuted.set(true);
+            }
+        };
+        mHandler.batch()
+            .add(removed)
+            .add(new Runnable() {
+                @Override
+                public void run() {
+                    latch.countDown();
+                }
+            })
+            .postDelayed(100);
+        mHandler.removeCallbacks(removed);
+
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        assertFalse(removedExecuted.get());
+        assertNull(mHandler.mRunnables.next);
+    }
+
+    @Test
+    public void reusedBatchPostsOnlyRunnablesAddedSincePreviousPost() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(2);
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        final WeakHandler.Batch batch = mHandler.batch();
+        batch.add(new RecordingRunnable(order, "first", latch)).post();
+        batch.add(new RecordingRunnable(order, "second", latch)).post();
+
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        SystemClock.sleep(50);
+        assertEquals(Arrays.asList("first", "second"), order);
+    }
+
+    @Test
+    public void frameBudgetDefersRestToNextTurn() throws InterruptedException {
+        mHandler.setFrameBudget(4);
+        final CountDownLatch latch = new CountDownLatch(10);
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        for (int i = 0; i < 10; ++i) {
+            final int num = i;
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    SystemClock.sleep(2);
+                    order.add(num);
+                    latch.countDown();
+                }
+            });
+        }
+
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7, 8, 9), order);
+        final WeakHandler.BudgetStats stats = mHandler.getBudgetStats();
+        assertEquals(10, stats.getProcessed());
+        assertTrue(stats.getDeferredTurns() >= 2);
+        assertEquals(0, stats.getPending());
+        assertNull(mHandler.mRunnables.next);
+    }
+
+    @Test
+    public void frameBudgetCoversDelayedPostsOnceDue() throws InterruptedException {
+        mHandler.setFrameBudget(4);
+        final CountDownLatch latch = new CountDownLatch(10);
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        final long uptimeMillis = SystemClock.uptimeMillis() + 50;
+        for (int i = 0; i < 10; ++i) {
+            final int num = i;
+            final Runnable r = new Runnable() {
+                @Override
+                public void run() {
+                    SystemClock.sleep(2);
+                    order.add(num);
+                    latch.countDown();
+                }
+            };
+            if (num < 5) {
+                mHandler.postAtTime(r, uptimeMillis);
+            } else { // Due no sooner than the timed ones
+                mHandler.postDelayed(r, 50);
+            }
+        }
+
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7, 8, 9), order);
+        final WeakHandler.BudgetStats stats = mHandler.getBudgetStats();
+        assertEquals(10, stats.getProcessed());
+        assertTrue(stats.getDeferredTurns() >= 1);
+        assertNull(mHandler.mRunnables.next);
+    }
+
+    @Test
+    public void removeCallbacksWithFrameBudget() throws InterruptedException {
+        mHandler.setFrameBudget(4);
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicBoolean removedExecuted = new AtomicBoolean(false);
+        final Runnable removed = new Runnable() {
+            @Override
+            public void run() {
+                removedExecuted.set(true);
+            }
+        };
+        final CountDownLatch blocker = blockLooper();
+        mHandler.post(removed);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        });
+        mHandler.removeCallbacks(removed);
+        blocker.countDown();
+
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        assertFalse(removedExecuted.get());
+    }
+
+    @Test
+    public void postWithPriorityRunsHigherLaneFirst() throws InterruptedException {
+        final CountDownLatch blocker = blockLooper();
+        final CountDownLatch latch = new CountDownLatch(3);
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        mHandler.post(new RecordingRunnable(order, "idle", latch), WeakHandler.Priority.IDLE);
+        mHandler.post(new RecordingRunnable(order, "normal", latch), WeakHandler.Priority.NORMAL);
+        mHandler.post(new RecordingRunnable(order, "high", latch), WeakHandler.Priority.HIGH);
+        blocker.countDown();
+
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("high", "normal", "idle"), order);
+        assertNull(mHandler.mRunnables.next);
+    }
+
+    @Test
+    public void postWithPriorityAgesWaitingRunnables() throws InterruptedException {
+        final CountDownLatch blocker = blockLooper();
+        final CountDownLatch latch = new CountDownLatch(2);
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        mHandler.post(new RecordingRunnable(order, "idle", latch), WeakHandler.Priority.IDLE);
+        SystemClock.sleep(3 * WeakHandler.Priority.AGING_STEP_MILLIS + 50);
+        mHandler.post(new RecordingRunnable(order, "high", latch), WeakHandler.Priority.HIGH);
+        blocker.countDown();
+
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("idle", "high"), order);
+    }
+
+    @Test
+    public void postWhenIdleRunsAfterPendingRunnables() throws InterruptedException {
+        final CountDownLatch blocker = blockLooper();
+        final CountDownLatch latch = new CountDownLatch(3);
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        mHandler.postWhenIdle(new RecordingRunnable(order, "idle", latch));
+        mHandler.post(new RecordingRunnable(order, "first", latch));
+        mHandler.post(new RecordingRunnable(order, "second", latch));
+        blocker.countDown();
+
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("first", "second", "idle"), order);
+        assertNull(mHandler.mRunnables.next);
+    }
+
+    @Test
+    public void postWhenIdleRunsOnAlreadyIdleLooper() throws InterruptedException {
+        final CountDownLatch drained = new CountDownLatch(1);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                drained.countDown();
+            }
+        });
+        assertTrue(drained.await(1, TimeUnit.SECONDS));
+        SystemClock.sleep(50); // Looper has nothing to do and waits for the next message
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        mHandler.postWhenIdle(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        }, 5000);
+
+        assertTrue(latch.await(300, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void postWhenIdleRunsByDeadlineIfQueueStaysBusy() throws InterruptedException {
+        final long busyUntil = SystemClock.uptimeMillis() + 500;
+        final Runnable busy = new Runnable() {
+            @Override
+            public void run() {
+                SystemClock.sleep(5);
+                if (SystemClock.uptimeMillis() < busyUntil) {
+                    mHandler.post(this);
+                }
+            }
+        };
+        mHandler.post(busy);
+        final CountDownLatch latch = new CountDownLatch(1);
+        mHandler.postWhenIdle(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        }, 100);
+
+        assertTrue(latch.await(300, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void removeCallbacksCancelsIdleRunnable() throws InterruptedException {
+        final CountDownLatch blocker = blockLooper();
+        final AtomicBoolean executed = new AtomicBoolean(false);
+        final Runnable idle = new Runnable() {
+            @Override
+            public void run() {
+                executed.set(true);
+            }
+        };
+        mHandler.postWhenIdle(idle, 100);
+        mHandler.removeCallbacks(idle);
+        blocker.countDown();
+
+        SystemClock.sleep(300);
+        assertFalse(executed.get());
+        assertNull(mHandler.mRunnables.next);
+    }
+
+    @Test
+    public void timingWheelRunsTimersByTheirTime() throws InterruptedException {
+        mHandler.setTimingWheel(10);
+        final CountDownLatch latch = new CountDownLatch(3);
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        final long startTime = SystemClock.uptimeMillis();
+        mHandler.postDelayed(new RecordingRunnable(order, "third", latch), 150);
+        mHandler.postDelayed(new RecordingRunnable(order, "first", latch), 50);
+        mHandler.postAtTime(new RecordingRunnable(order, "second", latch), startTime + 100);
+
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("first", "second", "third"), order);
+        assertTrue(SystemClock.uptimeMillis() - startTime >= 150);
+        assertNull(mHandler.mRunnables.next);
+    }
+
+    @Test
+    public void removeCallbacksCancelsTimer() throws InterruptedException {
+        mHandler.setTimingWheel(10);
+        final AtomicBoolean executed = new AtomicBoolean(false);
+        final Runnable removed = new Runnable() {
+            @Override
+            public void run() {
+                executed.set(true);
+            }
+        };
+        final CountDownLatch latch = new CountDownLatch(1);
+        mHandler.postDelayed(removed, 50);
+        mHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        }, 100);
+        mHandler.removeCallbacks(removed);
+
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        assertFalse(executed.get());
+        assertNull(mHandler.mRunnables.next);
+    }
+
+    @Test
+    public void monitorCountsDispatchedRunnables() throws InterruptedException {
+        final WeakHandler.Counters counters = new WeakHandler.Counters();
+        mHandler.setMonitor(counters);
+        final CountDownLatch latch = new CountDownLatch(2);
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        mHandler.postDelayed(new RecordingRunnable(order, "second", latch), 50);
+        mHandler.postDelayed(new DummyRunnable(), 100000);
+        assertEquals(2, mHandler.getPendingCount());
+        mHandler.post(new RecordingRunnable(order, "first", latch));
+
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        SystemClock.sleep(50); // Monitor is notified after runnable returns
+        assertEquals(2, counters.getDispatched());
+        long latencies = 0;
+        for (long count : counters.getLatencyHistogram()) {
+            latencies += count;
+        }
+        assertEquals(2, latencies);
+        assertEquals(1, mHandler.getPendingCount());
+    }
+
+    @Test
+    public void monitorReportsEachRunnableWithLatencySincePost() throws InterruptedException {
+        final WeakHandler.Counters counters = new WeakHandler.Counters();
+        mHandler.setMonitor(counters);
+        final CountDownLatch latch = new CountDownLatch(4);
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        mHandler.postBatch(Arrays.asList(
+            new RecordingRunnable(order, "first", latch),
+            new RecordingRunnable(order, "second", latch)));
+        mHandler.post(new RecordingRunnable(order, "lane", latch), WeakHandler.Priority.IDLE);
+        mHandler.postDelayed(new RecordingRunnable(order, "delayed", latch), 50);
+
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        SystemClock.sleep(50); // Monitor is notified after runnable returns
+        assertEquals(4, counters.getDispatched());
+        final long[] latencies = counters.getLatencyHistogram();
+        long delayed = 0;
+        for (int i = 6; i < latencies.length; i++) { // 32 ms and more
+            delayed += latencies[i];
+        }
+        assertTrue("Delay isn't part of latency", delayed >= 1);
+    }
+
+    @Test
+    public void monitorCountsCollectedRunnablesAndCallbacks() {
+        final WeakHandler.Counters counters = new WeakHandler.Counters();
+        WeakHandler handler = new WeakHandler(mThread.getLooper(), new Handler.Callback() {
+            @Override
+            public boolean handleMessage(Message msg) {
+                return true;
+            }
+        });
+        final WeakReference<WeakHandler> probe = new WeakReference<>(handler);
+        handler.setMonitor(counters);
+        handler.sendEmptyMessageDelayed(1, 300);
+        handler.postDelayed(new DummyRunnable(), 300);
+        handler = null;
+        Runtime.getRuntime().gc();
+        assumeTrue("Handler wasn't collected", probe.get() == null);
+        SystemClock.sleep(600);
+
+        assertEquals(1, counters.getCallbacksCollected());
+        // Collected runnable isn't run, whether it was reaped before its time or not
+        assertEquals(1, counters.getDispatched());
+    }
+
+    @Test
+    public void queuedRunnableIsReapedOnceHandlerIsCollected() {
+        WeakHandler handler = new WeakHandler(mThread.getLooper());
+        handler.postDelayed(new DummyRunnable(), 100000);
+        final WeakReference<WeakHandler> handlerProbe = new WeakReference<>(handler);
+        final WeakReference<Runnable> wrapperProbe = new WeakReference<Runnable>(handler.mRunnables.next.wrapper);
+        handler = null;
+        Runtime.getRuntime().gc();
+        assumeTrue("Handler wasn't collected", handlerProbe.get() == null);
+        SystemClock.sleep(100); // Reaper removes the message
+        Runtime.getRuntime().gc();
+
+        assertNull(wrapperProbe.get());
+    }
+
+    @Test
+    public void reapingKeepsMessagesOfCallbackReferencedElsewhere() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final Handler.Callback callback = new Handler.Callback() {
+            @Override
+            public boolean handleMessage(Message msg) {
+                latch.countDown();
+                return true;
+            }
+        };
+        WeakHandler handler = new WeakHandler(mThread.getLooper(), callback);
+        handler.sendEmptyMessageDelayed(1, 300);
+        handler.postDelayed(new DummyRunnable(), 100000);
+        final WeakReference<WeakHandler> probe = new WeakReference<>(handler);
+        handler = null;
+        Runtime.getRuntime().gc();
+        assumeTrue("Handler wasn't collected", probe.get() == null);
+
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void removeCallbacksWithTokenKeepsOtherPosts() throws InterruptedException {
+        final Object token = new Object();
+        final CountDownLatch latch = new CountDownLatch(2);
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        final Runnable runnable = new RecordingRunnable(order, "kept", latch);
+        mHandler.postAtTime(runnable, new Object(), SystemClock.uptimeMillis() + 50);
+        mHandler.postAtTime(runnable, token, SystemClock.uptimeMillis() + 50);
+        mHandler.postAtTime(runnable, token, SystemClock.uptimeMillis() + 50);
+        mHandler.postDelayed(runnable, 50);
+        mHandler.removeCallbacks(runnable, token);
+
+        assertEquals(2, mHandler.getPendingCount());
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        SystemClock.sleep(100);
+        assertEquals(2, order.size());
+        assertNull(mHandler.mRunnables.next);
+    }
+
+    @Test
+    public void removeCallbacksAndMessagesUnregistersRunnables() {
+        final Object token = new Object();
+        mHandler.postAtTime(new DummyRunnable(), token, SystemClock.uptimeMillis() + 100000);
+        mHandler.postAtTime(new DummyRunnable(), token, SystemClock.uptimeMillis() + 100000);
+        mHandler.postDelayed(new DummyRunnable(), 100000);
+
+        mHandler.removeCallbacksAndMessages(token);
+        assertEquals(1, mHandler.getPendingCount());
+
+        mHandler.postDelayed(new DummyRunnable(), 100000);
+        mHandler.removeCallbacksAndMessages(null);
+        assertEquals(0, mHandler.getPendingCount());
+        assertNull(mHandler.mRunnables.next);
+    }
+
+    @Test
+    public void pauseParksPostsUntilResume() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(3);
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        final WeakHandler handler = new WeakHandler(mThread.getLooper(), new Handler.Callback() {
+            @Override
+            public boolean handleMessage(Message msg) {
+                order.add("message");
+                latch.countDown();
+                return true;
+            }
+        });
+        handler.pause();
+        handler.post(new RecordingRunnable(order, "first", latch));
+        handler.sendEmptyMessage(1);
+        handler.postDelayed(new RecordingRunnable(order, "second", latch), 20);
+
+        SystemClock.sleep(100);
+        assertTrue(order.isEmpty());
+        assertTrue(handler.hasMessages(1));
+
+        handler.resume();
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("first", "message", "second"), order);
+        assertNull(handler.mRunnables.next);
+    }
+
+    @Test
+    public void pauseWithCoalescingReplaysLatestPosts() throws InterruptedException {
+        final AtomicInteger messages = new AtomicInteger();
+        final WeakHandler handler = new WeakHandler(mThread.getLooper(), new Handler.Callback() {
+            @Override
+            public boolean handleMessage(Message msg) {
+                messages.incrementAndGet();
+                return true;
+            }
+        });
+        final AtomicInteger executed = new AtomicInteger();
+        final Runnable runnable = new Runnable() {
+            @Override
+            public void run() {
+                executed.incrementAndGet();
+            }
+        };
+        handler.pause(true);
+        for (int i = 0; i < 5; ++i) {
+            handler.post(runnable);
+            handler.sendEmptyMessage(1);
+        }
+        SystemClock.sleep(100);
+        handler.resume();
+        SystemClock.sleep(100);
+
+        assertEquals(1, executed.get());
+        assertEquals(1, messages.get());
+        assertNull(handler.mRunnables.next);
+    }
+
+    @Test
+    public void removalsReachParkedPosts() {
+        final AtomicBoolean delivered = new AtomicBoolean(false);
+        final WeakHandler handler = new WeakHandler(mThread.getLooper(), new Handler.Callback() {
+            @Override
+            public boolean handleMessage(Message msg) {
+                delivered.set(true);
+                return true;
+            }
+        });
+        final AtomicBoolean executed = new AtomicBoolean(false);
+        final Runnable runnable = new Runnable() {
+            @Override
+            public void run() {
+                executed.set(true);
+            }
+        };
+        handler.pause();
+        handler.post(runnable);
+        handler.sendEmptyMessage(1);
+        SystemClock.sleep(100);
+        handler.removeCallbacks(runnable);
+        handler.removeMessages(1);
+        handler.resume();
+        SystemClock.sleep(100);
+
+        assertFalse(executed.get());
+        assertFalse(delivered.get());
+    }
+
+    @Test
+    public void removeMessagesOfWhatZeroKeepsParkedRunnables() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicBoolean delivered = new AtomicBoolean(false);
+        final WeakHandler handler = new WeakHandler(mThread.getLooper(), new Handler.Callback() {
+            @Override
+            public boolean handleMessage(Message msg) {
+                delivered.set(true);
+                return true;
+            }
+        });
+        handler.pause();
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        });
+        handler.sendEmptyMessage(0);
+        SystemClock.sleep(100);
+        handler.removeMessages(0);
+        assertFalse(handler.hasMessages(0));
+        handler.resume();
+
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        assertFalse(delivered.get());
+        assertNull(handler.mRunnables.next);
+    }
+
+    @Test
+    public void postForResultReturnsValueFromLooperThread() throws Exception {
+        final Future<Thread> future = mHandler.postForResult(new Callable<Thread>() {
+            @Override
+            public Thread call() {
+                return Thread.currentThread();
+            }
+        });
+        assertSame(mThread, future.get(1, TimeUnit.SECONDS));
+        assertTrue(future.isDone());
+        assertNull(mHandler.mRunnables.next);
+    }
+
+    @Test
+    public void postForResultCompletesInlineOnLooperThread() throws Exception {
+        final AtomicReference<Future<String>> inner = new AtomicReference<>();
+        mHandler.postForResult(new Callable<Void>() {
+            @Override
+            public Void call() {
+                inner.set(mHandler.postForResult(new Callable<String>() {
+                    @Override
+                    public String call() {
+                        return "inline";
+                    }
+                }));
+                return null;
+            }
+        }).get(1, TimeUnit.SECONDS);
+
+        assertTrue(inner.get().isDone());
+        assertEquals("inline", inner.get().get());
+    }
+
+    @Test
+    public void postForResultReportsException() throws Exception {
+        final Future<Object> future = mHandler.postForResult(new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                throw new IllegalStateException("failed");
+            }
+        });
+        try {
+            future.get(1, TimeUnit.SECONDS);
+            fail("Exception expected");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    @Test
+    public void cancelRemovesPendingResult() throws Exception {
+        final CountDownLatch blocker = blockLooper();
+        final AtomicBoolean called = new AtomicBoolean(false);
+        final Future<Object> future = mHandler.postForResult(new Callable<Object>() {
+            @Override
+            public Object call() {
+                called.set(true);
+                return null;
+            }
+        });
+
+        assertTrue(future.cancel(false));
+        assertTrue(future.isCancelled());
+        assertFalse(future.cancel(false));
+        blocker.countDown();
+        SystemClock.sleep(100);
+
+        assertFalse(called.get());
+        assertNull(mHandler.mRunnables.next);
+        try {
+            future.get();
+            fail("Cancellation expected");
+        } catch (CancellationException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void runOnLooperRunsInlineOnLooperThread() throws Exception {
+        final AtomicReference<Thread> ranOn = new AtomicReference<>();
+        final AtomicBoolean inline = new AtomicBoolean(false);
+        mHandler.postForResult(new Callable<Void>() {
+            @Override
+            public Void call() {
+                final AtomicBoolean ran = new AtomicBoolean(false);
+                mHandler.runOnLooper(new Runnable() {
+                    @Override
+                    public void run() {
+                        ran.set(true);
+                    }
+                });
+                inline.set(ran.get());
+                return null;
+            }
+        }).get(1, TimeUnit.SECONDS);
+        assertTrue(inline.get());
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        mHandler.runOnLooper(new Runnable() {
+            @Override
+            public void run() {
+                ranOn.set(Thread.currentThread());
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        assertSame(mThread, ranOn.get());
+    }
+
+    @Test
+    public void postOrRunDoesNotOvertakePendingRunnables() throws Exception {
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch latch = new CountDownLatch(3);
+        mHandler.postForResult(new Callable<Void>() {
+            @Override
+            public Void call() {
+                mHandler.postOrRun(new RecordingRunnable(order, "inline", latch));
+                mHandler.post(new RecordingRunnable(order, "posted", latch));
+                mHandler.postOrRun(new RecordingRunnable(order, "queued", latch));
+                return null;
+            }
+        });
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("inline", "posted", "queued"), order);
+    }
+
+    @Test
+    public void runOnLooperPostsBeyondDepthLimit() throws Exception {
+        mHandler.setInlineDepthLimit(2);
+        final AtomicInteger depth = new AtomicInteger();
+        final List<Integer> inlineDepths = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch latch = new CountDownLatch(4);
+        final Runnable recursive = new Runnable() {
+            @Override
+            public void run() {
+                inlineDepths.add(depth.incrementAndGet());
+                latch.countDown();
+                if (latch.getCount() > 0) {
+                    mHandler.runOnLooper(this);
+                }
+                depth.decrementAndGet();
+            }
+        };
+        mHandler.post(recursive);
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        // Posted run at depth 1 nests 2 inline runs, the next one is posted
+        assertEquals(Arrays.asList(1, 2, 3, 1), inlineDepths);
+    }
+
+    @Test
+    public void createAsyncSendsAsynchronousMessages() throws InterruptedException {
+        assumeTrue(Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP_MR1);
+        final List<Boolean> async = Collections.synchronizedList(new ArrayList<Boolean>());
+        final CountDownLatch latch = new CountDownLatch(3);
+        final WeakHandler handler = WeakHandler.createAsync(mThread.getLooper(), new Handler.Callback() {
+            @Override
+            public boolean handleMessage(Message msg) {
+                async.add(msg.isAsynchronous());
+                latch.countDown();
+                return true;
+            }
+        });
+        handler.sendEmptyMessage(1);
+        handler.sendEmptyMessageDelayed(2, 10);
+        handler.sendMessageAtFrontOfQueue(Message.obtain(null, 3));
+
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(true, true, true), async);
+    }
+
+    @Test
+    public void createAsyncKeepsRunnablesWeak() throws InterruptedException {
+        final WeakHandler handler = WeakHandler.createAsync(mThread.getLooper());
+        final CountDownLatch latch = new CountDownLatch(2);
+        handler.post(new RecordingRunnable(new ArrayList<String>(), "posted", latch));
+        handler.postAtFrontOfQueue(new RecordingRunnable(new ArrayList<String>(), "front", latch));
+
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        assertNull(handler.mRunnables.next);
+    }
+
+    @Test
+    public void postIfAbsentSkipsPendingRunnable() throws InterruptedException {
+        final CountDownLatch blocker = blockLooper();
+        final AtomicInteger executed = new AtomicInteger();
+        final Runnable runnable = new Runnable() {
+            @Override
+            public void run() {
+                executed.incrementAndGet();
+            }
+        };
+        for (int i = 0; i < 10; ++i) {
+            assertTrue(mHandler.postIfAbsent(runnable));
+            assertTrue(mHandler.postDelayedIfAbsent(runnable, 10));
+        }
+        assertTrue(mHandler.hasCallbacks(runnable));
+
+        blocker.countDown();
+        SystemClock.sleep(100);
+
+        assertEquals(1, executed.get());
+        assertFalse(mHandler.hasCallbacks(runnable));
+    }
+
+    @Test
+    public void postIfAbsentFromRunnableItselfPostsAgain() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(2);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+                if (latch.getCount() > 0) {
+                    mHandler.postIfAbsent(this);
+                }
+            }
+        });
+
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void retentionTrackerReportsLongPendingPosts() {
+        final WeakHandler.RetentionTracker tracker = new WeakHandler.RetentionTracker(2, 50);
+        mHandler.setRetentionTracker(tracker);
+        final Runnable runnable = new DummyRunnable();
+        for (int i = 0; i < 4; ++i) {
+            mHandler.postDelayed(runnable, 100000);
+        }
+        assertTrue(tracker.findLongPending().isEmpty());
+
+        SystemClock.sleep(100);
+        final List<WeakHandler.PostSite> sites = tracker.findLongPending();
+        assertEquals(2, sites.size());
+        assertEquals(DummyRunnable.class.getName(), sites.get(0).getRunnableClass());
+        assertEquals("retentionTrackerReportsLongPendingPosts", sites.get(0).getStackTrace()[0].getMethodName());
+
+        mHandler.removeCallbacks(runnable, null);
+        assertTrue(tracker.findLongPending().isEmpty());
+    }
+
+    @Test
+    public void retentionTrackerReportsRunnablesOutlivingHandler() {
+        final WeakHandler.RetentionTracker tracker = new WeakHandler.RetentionTracker(1, 0);
+        final Runnable retained = new DummyRunnable();
+        WeakHandler handler = new WeakHandler(mThread.getLooper());
+        handler.setRetentionTracker(tracker);
+        handler.postDelayed(retained, 100000);
+        handler.postDelayed(new DummyRunnable(), 100000);
+        final WeakReference<WeakHandler> handlerProbe = new WeakReference<>(handler);
+        assertTrue(tracker.findRetained().isEmpty());
+
+        handler = null;
+        Runtime.getRuntime().gc();
+        assumeTrue("Handler wasn't collected", handlerProbe.get() == null);
+
+        final List<WeakHandler.PostSite> sites = tracker.findRetained();
+        assertEquals(1, sites.size());
+        assertSame(retained, sites.get(0).getRunnable());
+    }
+
+    @Test
+    public void forLooperHandlersRemoveOnlyOwnRunnables() throws InterruptedException {
+        final WeakHandler first = WeakHandler.forLooper(mThread.getLooper());
+        final WeakHandler second = WeakHandler.forLooper(mThread.getLooper());
+        final AtomicBoolean firstExecuted = new AtomicBoolean(false);
+        final CountDownLatch latch = new CountDownLatch(1);
+        final Runnable firstRunnable = new Runnable() {
+            @Override
+            public void run() {
+                firstExecuted.set(true);
+            }
+        };
+        first.postDelayed(firstRunnable, 20);
+        first.postAtTime(firstRunnable, first, SystemClock.uptimeMillis() + 20);
+        second.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        }, 20);
+
+        first.removeCallbacksAndMessages(null);
+
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        SystemClock.sleep(50);
+        assertFalse(firstExecuted.get());
+        assertEquals(0, first.getPendingCount());
+        assertEquals(0, second.getPendingCount());
+    }
+
+    @Test
+    public void forLooperHandlerDropsRunnablesOnceCollected() {
+        final AtomicBoolean executed = new AtomicBoolean(false);
+        final Runnable runnable = new Runnable() {
+            @Override
+            public void run() {
+                executed.set(true);
+            }
+        };
+        WeakHandler handler = WeakHandler.forLooper(mThread.getLooper());
+        handler.postDelayed(runnable, 50);
+        final WeakReference<WeakHandler> handlerProbe = new WeakReference<>(handler);
+        handler = null;
+        Runtime.getRuntime().gc();
+        assumeTrue("Handler wasn't collected", handlerProbe.get() == null);
+
+        SystemClock.sleep(100);
+        assertFalse(executed.get());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void forLooperHandlerCantBePaused() {
+        WeakHandler.forLooper(mThread.getLooper()).pause();
+    }
+
+    private CountDownLatch blockLooper() {
+        final CountDownLatch blocker = new CountDownLatch(1);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    blocker.await();
+                } catch (InterruptedException e) {
+                    // Ignored
+                }
+            }
+        });
+        return blocker;
+    }
+
+    private static class RecordingRunnable implements Runnable {
+        private final List<String> mOrder;
+        private final String mName;
+        private final CountDownLatch mLatch;
+
+        RecordingRunnable(List<String> order, String name, CountDownLatch latch) {
+            mOrder = order;
+            mName = name;
+            mLatch = latch;
+        }
+
+        @Override
+        public void run() {
+            mOrder.add(mName);
+            mLatch.countDown();
+        }
+    }
+
     private class DummyRunnable implements Runnable {
         @Override
         public void run() {
@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2014 Badoo Trading Limited
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.badoo.mobile.util;
+
+import android.os.Handler;
+
+import androidx.annotation.NonNull;
+
+/**
+ * {@link WeakScheduler.Backend} posting to android.os.Handler
+ */
+public final class HandlerBackend implements WeakScheduler.Backend {
+    private final Handler mHandler;
+
+    public HandlerBackend(@NonNull Handler handler) {
+        mHandler = handler;
+    }
+
+    @Override
+    public boolean schedule(@NonNull Runnable task, long delayMillis) {
+        return mHandler.postDelayed(task, delayMillis);
+    }
+
+    @Override
+    public void cancel(@NonNull Runnable task) {
+        mHandler.removeCallbacks(task);
+    }
+}
@@ -24,17 +24,37 @@
  */
 package com.badoo.mobile.util;
 
+import android.annotation.SuppressLint;
+import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.MessageQueue;
+import android.os.SystemClock;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.annotation.VisibleForTesting;
 
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * Memory safer implementation of android.os.Handler
@@ -53,12 +73,40 @@ import java.util.concurrent.locks.ReentrantLock;
  */
 @SuppressWarnings("unused")
 public class WeakHandler {
+    /**
+     * Messages with this code carry pooled runnables, see {@link #setPooled(boolean)}
+     */
+    public static final int WHAT_POOLED_RUNNABLE = Integer.MIN_VALUE;
+
+    /**
+     * Default limit of nested inline runs, see {@link #setInlineDepthLimit(int)}
+     */
+    public static final int DEFAULT_INLINE_DEPTH_LIMIT = 8;
+
+    // Dispatchers of forLooper() views, referenced by the views only
+    private static final Map<Looper, WeakReference<ExecHandler>> sShared = new WeakHashMap<>();
+
     private final Handler.Callback mCallback; // hard reference to Callback. We need to keep callback in memory
     private final ExecHandler mExec;
-    private Lock mLock = new ReentrantLock();
-    @SuppressWarnings("ConstantConditions")
+    private final boolean mShared; // View of forLooper(), mExec dispatches for other views too
+    @Nullable
+    private volatile NodePool mPool;
+    private volatile boolean mWeakMessages;
+    @Nullable
+    private volatile BudgetQueue mBudget;
+    @Nullable
+    private volatile LaneQueue mLanes;
+    @Nullable
+    private volatile TimerWheel mWheel;
+    private volatile int mInlineDepthLimit = DEFAULT_INLINE_DEPTH_LIMIT;
+    @Nullable
+    private volatile RetentionTracker mTracker;
+    @Nullable
+    private volatile WeakObjects mWeakObjects; // Allocated once first obj is weakened
+    @Nullable
+    private volatile Map<Object, CoalescedRunnable> mCoalesced; // Allocated on first keyed post, guards itself
     @VisibleForTesting
-    final ChainedRef mRunnables = new ChainedRef(mLock, null);
+    final ChainedRef mRunnables = ChainedRef.head();
 
     /**
      * Default constructor associates this handler with the {@link Looper} for the
@@ -70,6 +118,8 @@ public class WeakHandler {
     public WeakHandler() {
         mCallback = null;
         mExec = new ExecHandler();
+        mShared = false;
+        mExec.mOwner = new WeakReference<>(this);
     }
 
     /**
@@ -85,6 +135,8 @@ public class WeakHandler {
     public WeakHandler(@Nullable Handler.Callback callback) {
         mCallback = callback; // Hard referencing body
         mExec = new ExecHandler(new WeakReference<>(callback)); // Weak referencing inside ExecHandler
+        mShared = false;
+        mExec.mOwner = new WeakReference<>(this);
     }
 
     /**
@@ -95,6 +147,8 @@ public class WeakHandler {
     public WeakHandler(@NonNull Looper looper) {
         mCallback = null;
         mExec = new ExecHandler(looper);
+        mShared = false;
+        mExec.mOwner = new WeakReference<>(this);
     }
 
     /**
@@ -107,6 +161,251 @@ public class WeakHandler {
     public WeakHandler(@NonNull Looper looper, @NonNull Handler.Callback callback) {
         mCallback = callback;
         mExec = new ExecHandler(looper, new WeakReference<>(callback));
+        mShared = false;
+        mExec.mOwner = new WeakReference<>(this);
+    }
+
+    private WeakHandler(@NonNull Looper looper, @Nullable Handler.Callback callback, boolean async) {
+        mCallback = callback;
+        mExec = new ExecHandler(looper, callback != null ? new WeakReference<>(callback) : null, async);
+        mShared = false;
+        mExec.mOwner = new WeakReference<>(this);
+    }
+
+    private WeakHandler(@NonNull ExecHandler shared) {
+        mCallback = null;
+        mExec = shared;
+        mShared = true;
+    }
+
+    /**
+     * Returns lightweight handler for runnables, which shares dispatcher with other handlers
+     * returned for the same {@link Looper}, e.g. one per view on the main looper. Each of them
+     * still keeps its own runnables, so {@link #removeCallbacksAndMessages(Object)} removes
+     * only the ones posted through it, and they can be collected together with it.
+     * <p/>
+     * Such handler has no callback, messages sent through it are dropped. It can't be
+     * {@link #pause() paused}, while {@link #setMonitor(Monitor) monitor} observes
+     * the shared dispatcher.
+     *
+     * @param looper The looper, must not be null.
+     */
+    @NonNull
+    public static WeakHandler forLooper(@NonNull Looper looper) {
+        //noinspection ConstantConditions
+        if (looper == null) {
+            throw new NullPointerException("Looper can't be null");
+        }
+        ExecHandler exec;
+        synchronized (sShared) {
+            final WeakReference<ExecHandler> ref = sShared.get(looper);
+            exec = ref != null ? ref.get() : null;
+            if (exec == null) {
+                exec = new ExecHandler(looper);
+                sShared.put(looper, new WeakReference<>(exec));
+            }
+        }
+        return new WeakHandler(exec);
+    }
+
+    /**
+     * Creates handler whose messages and runnables are asynchronous, similar to
+     * {@link Handler#createAsync(Looper)}. They are not held back by synchronization barriers
+     * the framework puts in the message queue until the next frame is traversed, so use it
+     * for animation and input critical work, which doesn't depend on layout being done.
+     * <p/>
+     * Messages are marked with {@link Message#setAsynchronous(boolean)}, which works since
+     * Jelly Bean; on older versions there are no barriers to bypass.
+     *
+     * @param looper The looper, must not be null.
+     */
+    @NonNull
+    public static WeakHandler createAsync(@NonNull Looper looper) {
+        return new WeakHandler(looper, null, true);
+    }
+
+    /**
+     * Creates asynchronous handler taking a callback interface in which to handle messages.
+     *
+     * @param looper The looper, must not be null.
+     * @param callback The callback interface in which to handle messages.
+     *
+     * @see #createAsync(Looper)
+     */
+    @NonNull
+    public static WeakHandler createAsync(@NonNull Looper looper, @NonNull Handler.Callback callback) {
+        return new WeakHandler(looper, callback, true);
+    }
+
+    /**
+     * Enables or disables recycling of internal wrappers created for each posted Runnable,
+     * similar to {@link Message#obtain()}. Once enabled, steady state posting via
+     * {@link #post}, {@link #postDelayed}, {@link #postAtTime(Runnable, long)} and
+     * {@link #postAtFrontOfQueue} doesn't allocate.
+     * <p/>
+     * Pooled runnables are delivered as messages with {@link #WHAT_POOLED_RUNNABLE} code.
+     * They are dropped once WeakHandler is collected, even if Runnable itself is still
+     * referenced from somewhere else.
+     *
+     * @param pooled true to recycle wrappers, false to allocate new ones for each post
+     */
+    public final void setPooled(boolean pooled) {
+        mPool = pooled ? new NodePool(mExec) : null;
+    }
+
+    /**
+     * Enables or disables weak referencing of {@link Message#obj} for messages sent to this handler,
+     * and of tokens passed to {@link #postAtTime(Runnable, Object, long)}.
+     * Once enabled, obj of a message waiting in the queue can be collected, in which case
+     * the message is dropped instead of being delivered.
+     * <p/>
+     * Messages are still matched by obj in {@link #removeMessages(int, Object)},
+     * {@link #hasMessages(int, Object)} and {@link #removeCallbacksAndMessages(Object)}.
+     *
+     * @param weak true to keep obj of the messages weakly referenced
+     */
+    public final void setWeakMessages(boolean weak) {
+        mWeakMessages = weak;
+    }
+
+    /**
+     * Enables or disables frame budgeted execution of runnables passed to {@link #post},
+     * {@link #postDelayed} and {@link #postAtTime(Runnable, long)}.
+     * Once enabled, they are kept in the own queue of this handler and drained by a single
+     * message, which runs them only until <var>budgetMillis</var> is spent and re-posts itself
+     * for the rest. This way the looper gets to input and drawing between the turns, even if
+     * hundreds of runnables were posted at once.
+     * <p/>
+     * Delayed and timed runnables wait in the message queue as usual and join the budgeted
+     * queue once they are due. Runnables posted with a token and ones kept in
+     * {@link #setTimingWheel(long) the timing wheel} still run straight from their messages.
+     *
+     * @param budgetMillis time to spend on budgeted runnables per looper turn, 0 to disable.
+     *
+     * @see #getBudgetStats()
+     */
+    public final void setFrameBudget(long budgetMillis) {
+        if (budgetMillis < 0) {
+            throw new IllegalArgumentException("Budget can't be negative: " + budgetMillis);
+        }
+        synchronized (mExec) {
+            if (budgetMillis == 0) {
+                mBudget = null; // Posted drain still runs what is already queued
+            } else if (mBudget == null) {
+                mBudget = new BudgetQueue(mExec, budgetMillis);
+            } else {
+                mBudget.setBudget(budgetMillis);
+            }
+        }
+    }
+
+    /**
+     * Enables or disables timing wheel for runnables passed to {@link #postDelayed} and
+     * {@link #postAtTime(Runnable, long)}. Once enabled, they are kept in the own hashed wheel
+     * of this handler and only a single message for the next due tick waits in the message queue,
+     * so both posting and removal take constant time regardless of how many timeouts are pending.
+     * <p/>
+     * Runnables run within <var>tickMillis</var> after their time, in posting order within a tick.
+     * Use it for timeouts which mostly get removed, like watchdogs of network requests.
+     *
+     * @param tickMillis resolution of the wheel, 0 to disable.
+     */
+    public final void setTimingWheel(long tickMillis) {
+        if (tickMillis < 0) {
+            throw new IllegalArgumentException("Tick can't be negative: " + tickMillis);
+        }
+        // Pending timers stay in the old wheel, which keeps running them
+        mWheel = tickMillis == 0 ? null : new TimerWheel(mExec, tickMillis);
+    }
+
+    /**
+     * Sets how deep {@link #runOnLooper} and {@link #postOrRun} may nest runnables run inline,
+     * e.g. when such runnable calls them again. Beyond the limit runnables are posted instead,
+     * so recursive updates can't overflow the stack.
+     *
+     * @param depth maximum number of nested inline runs, 0 to always post.
+     */
+    public final void setInlineDepthLimit(int depth) {
+        if (depth < 0) {
+            throw new IllegalArgumentException("Depth can't be negative: " + depth);
+        }
+        mInlineDepthLimit = depth;
+    }
+
+    /**
+     * Sets monitor notified about each message and runnable dispatched by this handler, or
+     * removes it if <var>monitor</var> is null. Without monitor there is no extra work done.
+     * <p/>
+     * Monitor is referenced by pending messages, so it shouldn't reference owner of this handler.
+     *
+     * @see Counters
+     */
+    public final void setMonitor(@Nullable Monitor monitor) {
+        mExec.mMonitor = monitor;
+    }
+
+    /**
+     * Sets tracker sampling call sites of posts made through this handler, or removes it if
+     * <var>tracker</var> is null. One tracker can be shared by all handlers of the app.
+     *
+     * @see RetentionTracker
+     */
+    public final void setRetentionTracker(@Nullable RetentionTracker tracker) {
+        mTracker = tracker;
+    }
+
+    /**
+     * Stops dispatching runnables and messages of this handler, e.g. while its screen is in
+     * background. Ones which become due are parked until {@link #resume()}, keeping the same
+     * references as they had in the message queue.
+     *
+     * @see #pause(boolean)
+     */
+    public final void pause() {
+        pause(false);
+    }
+
+    /**
+     * Stops dispatching runnables and messages of this handler until {@link #resume()}.
+     *
+     * @param coalesce true to park only the latest post of each Runnable and the latest message
+     *        of each what code, so replay doesn't repeat the same work
+     */
+    public final void pause(boolean coalesce) {
+        if (mShared) {
+            throw new IllegalStateException("Handler shared by forLooper() can't be paused");
+        }
+        mExec.pause(coalesce);
+    }
+
+    /**
+     * Dispatches runnables and messages parked since {@link #pause()} in the order they became due,
+     * ahead of other pending messages, and continues dispatching as usual.
+     */
+    public final void resume() {
+        mExec.resume();
+    }
+
+    public final boolean isPaused() {
+        return mExec.mPaused;
+    }
+
+    /**
+     * Returns number of runnables registered by this handler, which are waiting to be run.
+     */
+    public final int getPendingCount() {
+        return mRunnables.indexedCount();
+    }
+
+    /**
+     * Returns statistics of frame budgeted execution or null if it isn't enabled.
+     *
+     * @see #setFrameBudget(long)
+     */
+    @Nullable
+    public final BudgetStats getBudgetStats() {
+        final BudgetQueue budget = mBudget;
+        return budget != null ? budget.stats() : null;
     }
 
     /**
@@ -121,7 +420,64 @@ public class WeakHandler {
      *         looper processing the message queue is exiting.
      */
     public final boolean post(@NonNull Runnable r) {
-        return mExec.post(wrapRunnable(r));
+        final BudgetQueue budget = mBudget;
+        if (budget != null) {
+            return budget.enqueue(wrapRunnable(r));
+        }
+        final NodePool pool = mPool;
+        return pool != null ? mExec.sendMessage(obtainMessage(pool, r)) : mExec.post(wrapRunnable(r));
+    }
+
+    /**
+     * Runs the Runnable r right away if called on the thread to which this handler is attached,
+     * otherwise adds it to the message queue like {@link #post(Runnable)}.
+     * Inline run doesn't allocate anything, exceptions thrown by r propagate to the caller.
+     * <p/>
+     * Runnable is posted as well while this handler is paused or nesting exceeds
+     * {@link #setInlineDepthLimit(int) the limit}.
+     *
+     * @param r The Runnable that will be executed.
+     *
+     * @return Returns true if the Runnable was run or successfully placed in to the
+     *         message queue.
+     *
+     * @see #postOrRun(Runnable)
+     */
+    public final boolean runOnLooper(@NonNull Runnable r) {
+        return runInline(r) || post(r);
+    }
+
+    /**
+     * Like {@link #runOnLooper(Runnable)}, but runs the Runnable r inline only if no other runnable
+     * of this handler is waiting, so it never overtakes the ones posted earlier.
+     *
+     * @param r The Runnable that will be executed.
+     *
+     * @return Returns true if the Runnable was run or successfully placed in to the
+     *         message queue.
+     */
+    public final boolean postOrRun(@NonNull Runnable r) {
+        return (mRunnables.next == null && runInline(r)) || post(r);
+    }
+
+    private boolean runInline(@NonNull Runnable r) {
+        final ExecHandler exec = mExec;
+        if (Looper.myLooper() != exec.getLooper() || exec.mPaused
+            || exec.mInlineDepth >= mInlineDepthLimit) {
+            return false;
+        }
+        final Monitor monitor = exec.mMonitor;
+        final long start = monitor != null ? System.nanoTime() : 0;
+        exec.mInlineDepth++;
+        try {
+            r.run();
+        } finally {
+            exec.mInlineDepth--;
+        }
+        if (monitor != null) {
+            monitor.onDispatched(0, System.nanoTime() - start);
+        }
+        return true;
     }
 
     /**
@@ -142,7 +498,18 @@ public class WeakHandler {
      *         occurs then the message will be dropped.
      */
     public final boolean postAtTime(@NonNull Runnable r, long uptimeMillis) {
-        return mExec.postAtTime(wrapRunnable(r), uptimeMillis);
+        final TimerWheel wheel = mWheel;
+        if (wheel != null) {
+            return wheel.schedule(wrapTimer(wheel, r, uptimeMillis));
+        }
+        final BudgetQueue budget = mBudget;
+        if (budget != null) {
+            return postBudgeted(budget, r, uptimeMillis);
+        }
+        final NodePool pool = mPool;
+        return pool != null
+            ? mExec.sendMessageAtTime(obtainMessage(pool, r), uptimeMillis)
+            : mExec.postAtTime(wrapRunnable(r), uptimeMillis);
     }
 
     /**
@@ -165,7 +532,107 @@ public class WeakHandler {
      * @see android.os.SystemClock#uptimeMillis
      */
     public final boolean postAtTime(Runnable r, Object token, long uptimeMillis) {
-        return mExec.postAtTime(wrapRunnable(r), token, uptimeMillis);
+        // Token becomes obj of the message, so this one can't go through the pool
+        final Object messageToken = weaken(token);
+        return mExec.postAtTime(wrapRunnable(r, messageToken), messageToken, uptimeMillis);
+    }
+
+    /**
+     * Causes the Runnable r to be added to the lane of the given <var>priority</var>.
+     * Each looper turn this handler runs one runnable from the highest non-empty lane, so
+     * latency sensitive work doesn't wait behind bulk callbacks posted to the same looper.
+     * Runnables waiting long get aged to higher priority, see {@link Priority#AGING_STEP_MILLIS},
+     * so the lower lanes aren't starved.
+     *
+     * @param r The Runnable that will be executed.
+     * @param priority Lane to put the Runnable to.
+     *
+     * @return Returns true if the Runnable was successfully placed in to the
+     *         message queue.  Returns false on failure, usually because the
+     *         looper processing the message queue is exiting.
+     */
+    public final boolean post(@NonNull Runnable r, @NonNull Priority priority) {
+        //noinspection ConstantConditions
+        if (priority == null) {
+            throw new NullPointerException("Priority can't be null");
+        }
+        LaneQueue lanes = mLanes;
+        if (lanes == null) {
+            synchronized (mExec) {
+                lanes = mLanes;
+                if (lanes == null) {
+                    mLanes = lanes = new LaneQueue(mExec);
+                }
+            }
+        }
+        return lanes.enqueue(wrapRunnable(r), priority);
+    }
+
+    /**
+     * Causes the Callable to be called on the thread to which this handler is attached,
+     * or right away if it is the current thread.
+     * <p/>
+     * Cancelling returned future removes the pending runnable. Future references this handler weakly,
+     * so it never completes if the handler is collected before the callable was called, consider
+     * {@link Future#get(long, TimeUnit)} when waiting for it.
+     *
+     * @param callable The Callable that will be called.
+     *
+     * @return Future of the result, completed with {@link ExecutionException} if callable throws
+     *         or cancelled if the looper processing the message queue is exiting.
+     */
+    @NonNull
+    public final <T> Future<T> postForResult(@NonNull Callable<T> callable) {
+        //noinspection ConstantConditions
+        if (callable == null) {
+            throw new NullPointerException("Callable can't be null");
+        }
+        final ResultFuture<T> future = new ResultFuture<>(this, callable);
+        if (Looper.myLooper() == mExec.getLooper()) {
+            future.run();
+        } else if (!post(future)) {
+            future.cancel(false);
+        }
+        return future;
+    }
+
+    /**
+     * Causes the Runnable r to be run once the message queue becomes idle, that is when it
+     * has no more messages due. Suits non-urgent work, like prefetching, which shouldn't
+     * compete with the busy part of the frame.
+     *
+     * @param r The Runnable that will be executed.
+     *
+     * @return Returns true if the Runnable was successfully registered.
+     *         Returns false on failure, usually because the
+     *         looper processing the message queue is exiting.
+     *
+     * @see #postWhenIdle(Runnable, long)
+     */
+    public final boolean postWhenIdle(@NonNull Runnable r) {
+        return postWhenIdle(r, -1);
+    }
+
+    /**
+     * Causes the Runnable r to be run once the message queue becomes idle, but not later than
+     * after <var>maxDelayMillis</var>, even if the queue stays busy all that time.
+     *
+     * @param r The Runnable that will be executed.
+     * @param maxDelayMillis The delay (in milliseconds) after which the Runnable is posted as usual
+     *        if the queue didn't become idle, negative to wait for idle indefinitely.
+     *
+     * @return Returns true if the Runnable was successfully registered.
+     *         Returns false on failure, usually because the
+     *         looper processing the message queue is exiting.
+     */
+    public final boolean postWhenIdle(@NonNull Runnable r, long maxDelayMillis) {
+        final IdleRunnable idle = new IdleRunnable(mExec, wrapRunnable(r), maxDelayMillis);
+        // Registering by message also wakes the looper up: queue which is idle already runs
+        // idle handlers only after the next message, whenever it comes
+        if (!mExec.post(idle.registration())) {
+            return false;
+        }
+        return maxDelayMillis < 0 || mExec.postDelayed(idle, maxDelayMillis);
     }
 
     /**
@@ -186,7 +653,55 @@ public class WeakHandler {
      *         occurs then the message will be dropped.
      */
     public final boolean postDelayed(Runnable r, long delayMillis) {
-        return mExec.postDelayed(wrapRunnable(r), delayMillis);
+        final TimerWheel wheel = mWheel;
+        if (wheel != null) {
+            final long uptimeMillis = SystemClock.uptimeMillis() + Math.max(0, delayMillis);
+            return wheel.schedule(wrapTimer(wheel, r, uptimeMillis));
+        }
+        final BudgetQueue budget = mBudget;
+        if (budget != null) {
+            return postBudgeted(budget, r, SystemClock.uptimeMillis() + Math.max(0, delayMillis));
+        }
+        final NodePool pool = mPool;
+        return pool != null
+            ? mExec.sendMessageDelayed(obtainMessage(pool, r), delayMillis)
+            : mExec.postDelayed(wrapRunnable(r), delayMillis);
+    }
+
+    /**
+     * Causes the Runnable r to be added to the message queue, unless it is already pending.
+     * Check takes constant time, so it suits runnables posted over and over, like invalidation
+     * or refresh, which need to run once for all the posts made meanwhile.
+     * <p/>
+     * Posts made concurrently from several threads may still end up pending together.
+     *
+     * @param r The Runnable that will be executed.
+     *
+     * @return Returns true if the Runnable is pending, either posted by this call or before.
+     *         Returns false on failure, usually because the looper processing the message queue
+     *         is exiting.
+     *
+     * @see #hasCallbacks(Runnable)
+     */
+    public final boolean postIfAbsent(@NonNull Runnable r) {
+        return mRunnables.isPending(r) || post(r);
+    }
+
+    /**
+     * Causes the Runnable r to be added to the message queue, to be run after the specified
+     * amount of time elapses, unless it is already pending. Pending post keeps its time.
+     *
+     * @param r The Runnable that will be executed.
+     * @param delayMillis The delay (in milliseconds) until the Runnable will be executed.
+     *
+     * @return Returns true if the Runnable is pending, either posted by this call or before.
+     *         Returns false on failure, usually because the looper processing the message queue
+     *         is exiting.
+     *
+     * @see #postIfAbsent(Runnable)
+     */
+    public final boolean postDelayedIfAbsent(@NonNull Runnable r, long delayMillis) {
+        return mRunnables.isPending(r) || postDelayed(r, delayMillis);
     }
 
     /**
@@ -205,16 +720,107 @@ public class WeakHandler {
      *         looper processing the message queue is exiting.
      */
     public final boolean postAtFrontOfQueue(Runnable r) {
-        return mExec.postAtFrontOfQueue(wrapRunnable(r));
+        final NodePool pool = mPool;
+        return pool != null
+            ? mExec.sendAtFront(obtainMessage(pool, r))
+            : mExec.sendAtFront(Message.obtain(mExec, wrapRunnable(r)));
+    }
+
+    /**
+     * Causes the Runnable r to be run after the specified amount of time elapses since
+     * the last call with the same <var>key</var>. Each call replaces runnable and pushes
+     * back delivery time of the pending one in place, without touching the message queue,
+     * so this is cheap to call on every event of a burst (debounce).
+     *
+     * @param r The Runnable that will be executed, replaces one posted before with the same key.
+     * @param key Key identifying pending runnable, compared with equals.
+     * @param delayMillis The delay (in milliseconds) since the last call until the Runnable
+     *        will be executed.
+     *
+     * @return Returns true if the Runnable was successfully placed in to the
+     *         message queue or pending one was updated.  Returns false on failure,
+     *         usually because the looper processing the message queue is exiting.
+     *
+     * @see #removeCoalesced(Object)
+     */
+    public final boolean postCoalesced(@NonNull Runnable r, @NonNull Object key, long delayMillis) {
+        return postKeyed(r, key, delayMillis, true);
+    }
+
+    /**
+     * Causes the Runnable r to be run after the specified amount of time elapses since
+     * the first call with the same <var>key</var>. Following calls only replace runnable of
+     * the pending one, so it runs at most once per <var>intervalMillis</var>, using the latest
+     * runnable posted (throttle).
+     *
+     * @param r The Runnable that will be executed, replaces one posted before with the same key.
+     * @param key Key identifying pending runnable, compared with equals.
+     * @param intervalMillis The delay (in milliseconds) since the first call until the Runnable
+     *        will be executed.
+     *
+     * @return Returns true if the Runnable was successfully placed in to the
+     *         message queue or pending one was updated.  Returns false on failure,
+     *         usually because the looper processing the message queue is exiting.
+     *
+     * @see #removeCoalesced(Object)
+     */
+    public final boolean postThrottled(@NonNull Runnable r, @NonNull Object key, long intervalMillis) {
+        return postKeyed(r, key, intervalMillis, false);
+    }
+
+    /**
+     * Remove pending Runnable posted with {@link #postCoalesced} or {@link #postThrottled}
+     * with the given <var>key</var>.
+     */
+    public final void removeCoalesced(@NonNull Object key) {
+        final Map<Object, CoalescedRunnable> pending = mCoalesced;
+        if (pending == null) {
+            return;
+        }
+        final CoalescedRunnable coalesced;
+        synchronized (pending) {
+            coalesced = pending.remove(key);
+        }
+        if (coalesced != null) {
+            removeCallbacks(coalesced);
+        }
+    }
+
+    /**
+     * Causes all runnables to be added to the message queue as a single message.
+     * They will be run in iteration order on the thread to which this handler is
+     * attached, each of them can still be removed with {@link #removeCallbacks(Runnable)}.
+     *
+     * @param runnables The Runnables that will be executed.
+     *
+     * @return Returns true if the Runnables were successfully placed in to the
+     *         message queue.  Returns false on failure, usually because the
+     *         looper processing the message queue is exiting.
+     *
+     * @see #batch()
+     */
+    public final boolean postBatch(@NonNull Collection<? extends Runnable> runnables) {
+        final BatchRunnable batch = wrapBatch(runnables);
+        return batch == null || mExec.post(batch);
+    }
+
+    /**
+     * Returns new builder of runnables to be posted with a single message.
+     *
+     * @see #postBatch(Collection)
+     */
+    @NonNull
+    public final Batch batch() {
+        return new Batch();
     }
 
     /**
      * Remove any pending posts of Runnable r that are in the message queue.
      */
     public final void removeCallbacks(Runnable r) {
-        final WeakRunnable runnable = mRunnables.remove(r);
-        if (runnable != null) {
-            mExec.removeCallbacks(runnable);
+        ChainedRef ref;
+        while ((ref = mRunnables.removeRef(r)) != null) {
+            removeMessage(ref);
         }
     }
 
@@ -224,9 +830,29 @@ public class WeakHandler {
      * all callbacks will be removed.
      */
     public final void removeCallbacks(Runnable r, Object token) {
-        final WeakRunnable runnable = mRunnables.remove(r);
-        if (runnable != null) {
-            mExec.removeCallbacks(runnable, token);
+        if (token == null) {
+            ChainedRef ref;
+            while ((ref = mRunnables.removeRef(r)) != null) {
+                removeMessage(ref);
+            }
+            return;
+        }
+        final WeakObject weakToken = findWeak(token);
+        ChainedRef ref;
+        while ((ref = mRunnables.removeRef(r, token, weakToken)) != null) {
+            // Only runnables posted to the message queue have tokens
+            mExec.removeCallbacks(ref.wrapper, ref.token);
+        }
+    }
+
+    private void removeMessage(@NonNull ChainedRef ref) {
+        if (ref.timer != null) {
+            ((TimerWheel.Timer) ref.timer).cancel();
+        } else if (ref.pool != null) {
+            mExec.removeMessages(WHAT_POOLED_RUNNABLE, ref.wrapper);
+            ref.recycle();
+        } else {
+            mExec.removeCallbacks(ref.wrapper);
         }
     }
 
@@ -240,7 +866,7 @@ public class WeakHandler {
      *         looper processing the message queue is exiting.
      */
     public final boolean sendMessage(Message msg) {
-        return mExec.sendMessage(msg);
+        return mExec.sendMessage(weaken(msg));
     }
 
     /**
@@ -293,7 +919,7 @@ public class WeakHandler {
      *         occurs then the message will be dropped.
      */
     public final boolean sendMessageDelayed(Message msg, long delayMillis) {
-        return mExec.sendMessageDelayed(msg, delayMillis);
+        return mExec.sendMessageDelayed(weaken(msg), delayMillis);
     }
 
     /**
@@ -315,7 +941,7 @@ public class WeakHandler {
      *         occurs then the message will be dropped.
      */
     public boolean sendMessageAtTime(Message msg, long uptimeMillis) {
-        return mExec.sendMessageAtTime(msg, uptimeMillis);
+        return mExec.sendMessageAtTime(weaken(msg), uptimeMillis);
     }
 
     /**
@@ -331,7 +957,7 @@ public class WeakHandler {
      *         looper processing the message queue is exiting.
      */
     public final boolean sendMessageAtFrontOfQueue(Message msg) {
-        return mExec.sendMessageAtFrontOfQueue(msg);
+        return mExec.sendAtFront(weaken(msg));
     }
 
     /**
@@ -340,6 +966,7 @@ public class WeakHandler {
      */
     public final void removeMessages(int what) {
         mExec.removeMessages(what);
+        mExec.matchParked(true, false, what, null, null);
     }
 
     /**
@@ -349,6 +976,11 @@ public class WeakHandler {
      */
     public final void removeMessages(int what, Object object) {
         mExec.removeMessages(what, object);
+        final WeakObject weakObject = findWeak(object);
+        if (weakObject != null) {
+            mExec.removeMessages(what, weakObject);
+        }
+        mExec.matchParked(true, false, what, object, weakObject);
     }
 
     /**
@@ -357,7 +989,51 @@ public class WeakHandler {
      * all callbacks and messages will be removed.
      */
     public final void removeCallbacksAndMessages(Object token) {
-        mExec.removeCallbacksAndMessages(token);
+        if (token == null) {
+            final Map<Object, CoalescedRunnable> coalesced = mCoalesced;
+            if (coalesced != null) {
+                synchronized (coalesced) {
+                    coalesced.clear(); // Their messages are gone too
+                }
+            }
+            final BudgetQueue budget = mBudget;
+            if (budget != null) {
+                budget.clear();
+            }
+            final LaneQueue lanes = mLanes;
+            if (lanes != null) {
+                lanes.clear();
+            }
+            final TimerWheel wheel = mWheel;
+            if (wheel != null) {
+                wheel.clear();
+            }
+            mRunnables.removeAll();
+            if (!mShared) { // Otherwise messages of removed entries do nothing until reaped
+                mExec.removeCallbacksAndMessages(null);
+                mExec.matchParked(true, true, 0, null, null);
+            }
+            return;
+        }
+        mRunnables.removeAll(token);
+        final WeakObject weakToken = findWeak(token);
+        if (weakToken != null) {
+            mRunnables.removeAll(weakToken);
+        }
+        if (!mShared) {
+            mExec.removeCallbacksAndMessages(token);
+            if (weakToken != null) {
+                mExec.removeCallbacksAndMessages(weakToken);
+            }
+            mExec.matchParked(true, true, 0, token, weakToken);
+        }
+    }
+
+    /**
+     * Check if there are any pending posts of Runnable r. Takes constant time.
+     */
+    public final boolean hasCallbacks(@NonNull Runnable r) {
+        return mRunnables.isPending(r);
     }
 
     /**
@@ -365,7 +1041,7 @@ public class WeakHandler {
      * the message queue.
      */
     public final boolean hasMessages(int what) {
-        return mExec.hasMessages(what);
+        return mExec.hasMessages(what) || mExec.matchParked(false, false, what, null, null);
     }
 
     /**
@@ -373,7 +1049,12 @@ public class WeakHandler {
      * whose obj is 'object' in the message queue.
      */
     public final boolean hasMessages(int what, Object object) {
-        return mExec.hasMessages(what, object);
+        if (mExec.hasMessages(what, object)) {
+            return true;
+        }
+        final WeakObject weakObject = findWeak(object);
+        return weakObject != null && mExec.hasMessages(what, weakObject)
+            || mExec.matchParked(false, false, what, object, weakObject);
     }
 
     public final Looper getLooper() {
@@ -381,137 +1062,1520 @@ public class WeakHandler {
     }
 
     private WeakRunnable wrapRunnable(@NonNull Runnable r) {
+        return wrapRunnable(r, null);
+    }
+
+    private WeakRunnable wrapRunnable(@NonNull Runnable r, @Nullable Object token) {
         //noinspection ConstantConditions
         if (r == null) {
             throw new NullPointerException("Runnable can't be null");
         }
-        final ChainedRef hardRef = new ChainedRef(mLock, r);
+        // Messages of removed entries stay in the shared queue, so they must not run
+        final ChainedRef hardRef = new ChainedRef(r, mExec, mShared);
+        hardRef.token = token;
+        stamp(hardRef);
         mRunnables.insertAfter(hardRef);
         return hardRef.wrapper;
     }
 
-    private static class ExecHandler extends Handler {
-        private final WeakReference<Handler.Callback> mCallback;
-
-        ExecHandler() {
-            mCallback = null;
+    @Nullable
+    private BatchRunnable wrapBatch(@NonNull Collection<? extends Runnable> runnables) {
+        final int size = runnables.size();
+        if (size == 0) {
+            return null;
+        }
+        final ChainedRef[] hardRefs = new ChainedRef[size];
+        final WeakRunnable[] wrappers = new WeakRunnable[size];
+        int i = 0;
+        for (Runnable r : runnables) {
+            //noinspection ConstantConditions
+            if (r == null) {
+                throw new NullPointerException("Runnable can't be null");
+            }
+            hardRefs[i] = new ChainedRef(r);
+            stamp(hardRefs[i]);
+            wrappers[i] = hardRefs[i].wrapper;
+            i++;
         }
+        mRunnables.insertAllAfter(hardRefs);
+        return new BatchRunnable(mExec, wrappers);
+    }
 
-        ExecHandler(WeakReference<Handler.Callback> callback) {
-            mCallback = callback;
+    private TimerWheel.Timer wrapTimer(@NonNull TimerWheel wheel, @NonNull Runnable r, long uptimeMillis) {
+        //noinspection ConstantConditions
+        if (r == null) {
+            throw new NullPointerException("Runnable can't be null");
         }
+        final ChainedRef hardRef = new ChainedRef(r);
+        final TimerWheel.Timer timer = new TimerWheel.Timer(wheel, hardRef.wrapper, uptimeMillis);
+        hardRef.timer = timer;
+        stamp(hardRef);
+        mRunnables.insertAfter(hardRef);
+        return timer;
+    }
 
-        ExecHandler(Looper looper) {
-            super(looper);
-            mCallback = null;
+    /**
+     * Budget queue becomes obj of the message, so that {@link ExecHandler#dispatchMessage}
+     * moves runnable there once it is due. Removal still finds message by its wrapper.
+     */
+    private boolean postBudgeted(@NonNull BudgetQueue budget, @NonNull Runnable r, long uptimeMillis) {
+        return mExec.postAtTime(wrapRunnable(r), budget, uptimeMillis);
+    }
+
+    private boolean postKeyed(@NonNull Runnable r, @NonNull Object key, long delayMillis, boolean pushBack) {
+        //noinspection ConstantConditions
+        if (r == null) {
+            throw new NullPointerException("Runnable can't be null");
+        }
+        final long uptimeMillis = SystemClock.uptimeMillis() + Math.max(0, delayMillis);
+        Map<Object, CoalescedRunnable> keyed = mCoalesced;
+        if (keyed == null) {
+            synchronized (mExec) {
+                keyed = mCoalesced;
+                if (keyed == null) {
+                    mCoalesced = keyed = new HashMap<>();
+                }
+            }
         }
+        final CoalescedRunnable coalesced;
+        synchronized (keyed) {
+            final CoalescedRunnable pending = keyed.get(key);
+            if (pending != null) {
+                pending.target = r;
+                if (pushBack) {
+                    pending.uptimeMillis = uptimeMillis; // Its message will re-post it once delivered
+                }
+                return true;
+            }
+            coalesced = new CoalescedRunnable(key, r, uptimeMillis);
+            keyed.put(key, coalesced);
+        }
+        return mExec.postAtTime(wrapRunnable(coalesced), uptimeMillis);
+    }
 
-        ExecHandler(Looper looper, WeakReference<Handler.Callback> callback) {
-            super(looper);
-            mCallback = callback;
+    // Called before entry gets into the chain, overwrites post time and site of recycled entries
+    private void stamp(@NonNull ChainedRef ref) {
+        ref.postedAt = mExec.mMonitor != null ? SystemClock.uptimeMillis() : 0;
+        final RetentionTracker tracker = mTracker;
+        ref.site = tracker != null ? tracker.sample(this, ref) : null;
+    }
+
+    private Message weaken(Message msg) {
+        msg.obj = weaken(msg.obj);
+        return msg;
+    }
+
+    @Nullable
+    private Object weaken(@Nullable Object obj) {
+        if (!mWeakMessages || obj == null || obj instanceof WeakObject) {
+            return obj;
+        }
+        WeakObjects weakObjects = mWeakObjects;
+        if (weakObjects == null) {
+            synchronized (mExec) {
+                weakObjects = mWeakObjects;
+                if (weakObjects == null) {
+                    mWeakObjects = weakObjects = new WeakObjects();
+                }
+            }
+        }
+        return weakObjects.wrap(obj);
+    }
+
+    @Nullable
+    private WeakObject findWeak(@Nullable Object obj) {
+        final WeakObjects weakObjects = mWeakObjects;
+        return weakObjects != null ? weakObjects.find(obj) : null;
+    }
+
+    private Message obtainMessage(@NonNull NodePool pool, @NonNull Runnable r) {
+        //noinspection ConstantConditions
+        if (r == null) {
+            throw new NullPointerException("Runnable can't be null");
+        }
+        final ChainedRef hardRef = pool.obtain(r);
+        // Generation has to be taken before entry gets into the chain, once there it can be
+        // removed and recycled by another thread at any moment
+        final Message message = Message.obtain(mExec, WHAT_POOLED_RUNNABLE, hardRef.generation, 0, hardRef.wrapper);
+        stamp(hardRef);
+        mRunnables.insertAfter(hardRef);
+        return message;
+    }
+
+    /**
+     * Single queued entry of {@link #postCoalesced} and {@link #postThrottled}, updated in place
+     * by following calls with the same key
+     */
+    private class CoalescedRunnable implements Runnable {
+        private final Object mKey;
+        Runnable target; // Guarded by mCoalesced
+        long uptimeMillis; // Guarded by mCoalesced
+
+        CoalescedRunnable(Object key, Runnable target, long uptimeMillis) {
+            mKey = key;
+            this.target = target;
+            this.uptimeMillis = uptimeMillis;
         }
 
         @Override
-        public void handleMessage(@NonNull Message msg) {
-            if (mCallback == null) {
+        public void run() {
+            final long now = SystemClock.uptimeMillis();
+            final Map<Object, CoalescedRunnable> keyed = mCoalesced; // Allocated before posting this
+            final Runnable target;
+            final long uptimeMillis;
+            synchronized (keyed) {
+                if (keyed.get(mKey) != this) { // Removed meanwhile
+                    return;
+                }
+                target = this.target;
+                uptimeMillis = this.uptimeMillis;
+                if (now >= uptimeMillis) {
+                    keyed.remove(mKey);
+                }
+            }
+            if (now < uptimeMillis) {
+                // Pushed back while waiting in the queue
+                mExec.postAtTime(wrapRunnable(this), uptimeMillis);
+            } else {
+                target.run();
+            }
+        }
+    }
+
+    /**
+     * Future of {@link #postForResult(Callable)}, which is also the posted runnable
+     */
+    private static class ResultFuture<T> implements Future<T>, Runnable {
+        private static final int PENDING = 0;
+        private static final int DONE = 1;
+        private static final int FAILED = 2;
+        private static final int CANCELLED = 3;
+
+        private final WeakReference<WeakHandler> mHandler;
+        @Nullable
+        private Callable<T> mCallable; // Guarded by this, fields below too
+        private int mState = PENDING;
+        @Nullable
+        private T mResult;
+        @Nullable
+        private Throwable mError;
+
+        ResultFuture(@NonNull WeakHandler handler, @NonNull Callable<T> callable) {
+            mHandler = new WeakReference<>(handler);
+            mCallable = callable;
+        }
+
+        @Override
+        public void run() {
+            final Callable<T> callable;
+            synchronized (this) {
+                callable = mCallable;
+                mCallable = null;
+            }
+            if (callable == null) { // Cancelled
                 return;
             }
-            final Handler.Callback callback = mCallback.get();
-            if (callback == null) { // Already disposed
+            try {
+                complete(DONE, callable.call(), null);
+            } catch (Throwable e) {
+                complete(FAILED, null, e);
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            synchronized (this) {
+                if (mState != PENDING) {
+                    return false;
+                }
+                mCallable = null; // Looper thread is never interrupted, running callable completes
+                mState = CANCELLED;
+                notifyAll();
+            }
+            final WeakHandler handler = mHandler.get();
+            if (handler != null) {
+                handler.removeCallbacks(this);
+            }
+            return true;
+        }
+
+        @Override
+        public synchronized boolean isCancelled() {
+            return mState == CANCELLED;
+        }
+
+        @Override
+        public synchronized boolean isDone() {
+            return mState != PENDING;
+        }
+
+        @Override
+        public synchronized T get() throws InterruptedException, ExecutionException {
+            while (mState == PENDING) {
+                wait();
+            }
+            return result();
+        }
+
+        @Override
+        public synchronized T get(long timeout, @NonNull TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+            final long deadline = System.nanoTime() + unit.toNanos(timeout);
+            while (mState == PENDING) {
+                final long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    throw new TimeoutException();
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            return result();
+        }
+
+        private synchronized void complete(int state, @Nullable T result, @Nullable Throwable error) {
+            if (mState != PENDING) { // Cancelled while running
                 return;
             }
-            callback.handleMessage(msg);
+            mState = state;
+            mResult = result;
+            mError = error;
+            notifyAll();
+        }
+
+        // Must be called while holding this
+        private T result() throws ExecutionException {
+            if (mState == CANCELLED) {
+                throw new CancellationException();
+            }
+            if (mState == FAILED) {
+                throw new ExecutionException(mError);
+            }
+            return mResult;
+        }
+    }
+
+    /**
+     * Collects runnables to be posted with a single message, see {@link #postBatch(Collection)}
+     */
+    public final class Batch {
+        private final List<Runnable> mRunnables = new ArrayList<>();
+
+        Batch() {
+        }
+
+        @NonNull
+        public Batch add(@NonNull Runnable r) {
+            //noinspection ConstantConditions
+            if (r == null) {
+                throw new NullPointerException("Runnable can't be null");
+            }
+            mRunnables.add(r);
+            return this;
+        }
+
+        /**
+         * Posts collected runnables and empties the builder, so it can be reused for the next batch
+         */
+        public boolean post() {
+            final BatchRunnable batch = take();
+            return batch == null || mExec.post(batch);
+        }
+
+        /**
+         * Posts collected runnables to be run after the specified amount of time elapses,
+         * and empties the builder
+         */
+        public boolean postDelayed(long delayMillis) {
+            final BatchRunnable batch = take();
+            return batch == null || mExec.postDelayed(batch, delayMillis);
+        }
+
+        @Nullable
+        private BatchRunnable take() {
+            final BatchRunnable batch = wrapBatch(mRunnables);
+            mRunnables.clear();
+            return batch;
+        }
+    }
+
+    /**
+     * Single queued entry of a batch, runs members which weren't removed meanwhile
+     */
+    static class BatchRunnable implements Drain {
+        private final ExecHandler mExec;
+        private final WeakRunnable[] mWrappers;
+
+        BatchRunnable(@NonNull ExecHandler exec, WeakRunnable[] wrappers) {
+            mExec = exec;
+            mWrappers = wrappers;
+        }
+
+        @Override
+        public void run() {
+            for (WeakRunnable wrapper : mWrappers) {
+                mExec.runPending(wrapper);
+            }
+        }
+    }
+
+    /**
+     * Snapshot of frame budgeted execution statistics, see {@link #setFrameBudget(long)}
+     */
+    public static final class BudgetStats {
+        private final long mProcessed;
+        private final long mDeferredTurns;
+        private final int mPending;
+        private final int mMaxPending;
+
+        BudgetStats(long processed, long deferredTurns, int pending, int maxPending) {
+            mProcessed = processed;
+            mDeferredTurns = deferredTurns;
+            mPending = pending;
+            mMaxPending = maxPending;
+        }
+
+        /**
+         * Number of runnables taken from the queue, including ones removed before they could run
+         */
+        public long getProcessed() {
+            return mProcessed;
+        }
+
+        /**
+         * Number of times budget was spent before the queue was drained and the rest was deferred
+         * to the next looper turn
+         */
+        public long getDeferredTurns() {
+            return mDeferredTurns;
+        }
+
+        /**
+         * Number of runnables waiting in the queue
+         */
+        public int getPending() {
+            return mPending;
+        }
+
+        /**
+         * Largest number of runnables waiting in the queue at once
+         */
+        public int getMaxPending() {
+            return mMaxPending;
+        }
+
+        @Override
+        public String toString() {
+            return "BudgetStats{processed=" + mProcessed + ", deferredTurns=" + mDeferredTurns
+                + ", pending=" + mPending + ", maxPending=" + mMaxPending + '}';
         }
     }
 
-    static class WeakRunnable implements Runnable {
-        private final WeakReference<Runnable> mDelegate;
-        private final WeakReference<ChainedRef> mReference;
+    /**
+     * Own queue of frame budgeted runnables, drained by a single message posted to the looper.
+     * It keeps only weak wrappers, just like the message queue, and doesn't reference WeakHandler.
+     */
+    static class BudgetQueue implements Drain {
+        private final ExecHandler mExec;
+        private final ArrayDeque<WeakRunnable> mQueue = new ArrayDeque<>(); // Guards fields below
+        private volatile long mBudgetNanos;
+        private boolean mPosted;
+        private long mProcessed;
+        private long mDeferredTurns;
+        private int mMaxPending;
+
+        BudgetQueue(@NonNull ExecHandler exec, long budgetMillis) {
+            mExec = exec;
+            setBudget(budgetMillis);
+        }
+
+        void setBudget(long budgetMillis) {
+            mBudgetNanos = TimeUnit.MILLISECONDS.toNanos(budgetMillis);
+        }
+
+        boolean enqueue(@NonNull WeakRunnable wrapper) {
+            synchronized (mQueue) {
+                mQueue.add(wrapper);
+                mMaxPending = Math.max(mMaxPending, mQueue.size());
+                if (mPosted) {
+                    return true;
+                }
+                mPosted = true;
+            }
+            if (mExec.post(this)) {
+                return true;
+            }
+            synchronized (mQueue) {
+                mQueue.clear();
+                mPosted = false;
+            }
+            return false;
+        }
+
+        void clear() {
+            synchronized (mQueue) {
+                mQueue.clear();
+                mPosted = false;
+            }
+            mExec.removeCallbacks(this);
+        }
 
-        WeakRunnable(WeakReference<Runnable> delegate, WeakReference<ChainedRef> reference) {
-            mDelegate = delegate;
-            mReference = reference;
+        BudgetStats stats() {
+            synchronized (mQueue) {
+                return new BudgetStats(mProcessed, mDeferredTurns, mQueue.size(), mMaxPending);
+            }
         }
 
         @Override
         public void run() {
-            final Runnable delegate = mDelegate.get();
-            final ChainedRef reference = mReference.get();
-            if (reference != null) {
-                reference.remove();
+            final long deadline = System.nanoTime() + mBudgetNanos;
+            boolean drained = false;
+            try {
+                do {
+                    final WeakRunnable wrapper;
+                    synchronized (mQueue) {
+                        wrapper = mQueue.poll();
+                        if (wrapper == null) {
+                            mPosted = false;
+                            drained = true;
+                            return;
+                        }
+                        mProcessed++;
+                    }
+                    mExec.runPending(wrapper);
+                } while (System.nanoTime() - deadline < 0);
+            } finally {
+                // Also reached when runnable throws, the rest must not get stuck in the queue
+                if (!drained) {
+                    deferRest();
+                }
             }
-            if (delegate != null) {
-                delegate.run();
+        }
+
+        private void deferRest() {
+            synchronized (mQueue) {
+                if (mQueue.isEmpty()) {
+                    mPosted = false;
+                    return;
+                }
+                mDeferredTurns++;
             }
+            mExec.post(this); // Lets the looper process input and drawing before the rest
         }
     }
 
-    static class ChainedRef {
-        @Nullable
-        ChainedRef next;
+    /**
+     * Runnable of {@link #postWhenIdle}, run either by the idle queue or by the deadline message.
+     * Both of them reference it strongly, so it keeps only weak wrapper and doesn't reference
+     * WeakHandler.
+     */
+    static class IdleRunnable implements MessageQueue.IdleHandler, Drain {
+        private final ExecHandler mExec;
+        private final WeakRunnable mWrapper;
+        private final long mMaxDelayMillis;
+
+        IdleRunnable(@NonNull ExecHandler exec, @NonNull WeakRunnable wrapper, long maxDelayMillis) {
+            mExec = exec;
+            mWrapper = wrapper;
+            mMaxDelayMillis = maxDelayMillis;
+        }
+
+        @Override
+        public boolean queueIdle() {
+            if (mMaxDelayMillis >= 0) {
+                mExec.removeCallbacks(this);
+            }
+            mExec.runPending(mWrapper);
+            return false;
+        }
+
+        /**
+         * Deadline passed while queue was still busy
+         */
+        @Override
+        public void run() {
+            Looper.myQueue().removeIdleHandler(this);
+            mExec.runPending(mWrapper);
+        }
+
+        /**
+         * Returns runnable registering this one from the thread of the looper
+         */
+        Runnable registration() {
+            return new Drain() {
+                @Override
+                public void run() {
+                    Looper.myQueue().addIdleHandler(IdleRunnable.this);
+                }
+            };
+        }
+    }
+
+    /**
+     * Hashed wheel of {@link #setTimingWheel(long)} timers, run by a single message posted
+     * for the nearest non-empty tick. It keeps only weak wrappers, just like the message queue,
+     * and doesn't reference WeakHandler.
+     */
+    static class TimerWheel implements Drain {
+        private static final int WHEEL_SIZE = 512; // Power of two
+
+        private final ExecHandler mExec;
+        private final long mTickMillis;
+        private final Timer[] mBuckets = new Timer[WHEEL_SIZE]; // Guarded by itself
+        private long mCurrentTick; // Last tick processed
+        private long mPostedTick; // Tick of the pending message, 0 if none
+        private int mCount;
+
+        TimerWheel(@NonNull ExecHandler exec, long tickMillis) {
+            mExec = exec;
+            mTickMillis = tickMillis;
+            mCurrentTick = SystemClock.uptimeMillis() / tickMillis;
+        }
+
+        boolean schedule(@NonNull Timer timer) {
+            synchronized (mBuckets) {
+                // Rounded up, so runnable never runs before its time
+                final long tick = Math.max((timer.uptimeMillis + mTickMillis - 1) / mTickMillis, mCurrentTick + 1);
+                timer.tick = tick;
+                final int bucket = (int) (tick & (WHEEL_SIZE - 1));
+                final Timer head = mBuckets[bucket];
+                if (head == null) {
+                    timer.prev = timer;
+                    mBuckets[bucket] = timer;
+                } else { // Head's prev is the tail, keeps posting order within a tick
+                    timer.prev = head.prev;
+                    head.prev.next = timer;
+                    head.prev = timer;
+                }
+                timer.scheduled = true;
+                mCount++;
+                return postTick(tick);
+            }
+        }
+
+        void clear() {
+            synchronized (mBuckets) {
+                for (int i = 0; i < WHEEL_SIZE; i++) {
+                    for (Timer timer = mBuckets[i]; timer != null; timer = timer.next) {
+                        timer.scheduled = false;
+                    }
+                    mBuckets[i] = null;
+                }
+                mCount = 0;
+                mPostedTick = 0;
+            }
+            mExec.removeCallbacks(this);
+        }
+
+        @Override
+        public void run() {
+            Timer due = null;
+            synchronized (mBuckets) {
+                mPostedTick = 0;
+                final long nowTick = SystemClock.uptimeMillis() / mTickMillis;
+                final long lastTick = Math.min(nowTick, mCurrentTick + WHEEL_SIZE);
+                Timer dueTail = null;
+                for (long tick = mCurrentTick + 1; tick <= lastTick; tick++) {
+                    Timer timer = mBuckets[(int) (tick & (WHEEL_SIZE - 1))];
+                    while (timer != null) {
+                        final Timer next = timer.next;
+                        if (timer.tick <= nowTick) {
+                            unlink(timer);
+                            if (due == null) {
+                                due = timer;
+                            } else {
+                                dueTail.next = timer;
+                            }
+                            dueTail = timer;
+                        }
+                        timer = next;
+                    }
+                }
+                mCurrentTick = nowTick;
+                // Posted before running, so the rest isn't stuck if runnable throws
+                postNextTick();
+            }
+            while (due != null) {
+                final Timer next = due.next;
+                due.next = null;
+                mExec.runPending(due.wrapper);
+                due = next;
+            }
+        }
+
+        // Must be called while holding mBuckets
+        private void postNextTick() {
+            if (mCount == 0) {
+                return;
+            }
+            for (long tick = mCurrentTick + 1; tick <= mCurrentTick + WHEEL_SIZE; tick++) {
+                if (mBuckets[(int) (tick & (WHEEL_SIZE - 1))] != null) {
+                    postTick(tick); // Might be a timer of a later round, then we only pass by
+                    return;
+                }
+            }
+        }
+
+        // Must be called while holding mBuckets
+        private boolean postTick(long tick) {
+            if (mPostedTick != 0 && mPostedTick <= tick) {
+                return true;
+            }
+            if (mPostedTick != 0) {
+                mExec.removeCallbacks(this);
+            }
+            mPostedTick = tick;
+            return mExec.postAtTime(this, tick * mTickMillis);
+        }
+
+        // Must be called while holding mBuckets
+        private void unlink(@NonNull Timer timer) {
+            final int bucket = (int) (timer.tick & (WHEEL_SIZE - 1));
+            final Timer head = mBuckets[bucket];
+            if (timer == head) {
+                mBuckets[bucket] = timer.next;
+                if (timer.next != null) {
+                    timer.next.prev = timer.prev;
+                }
+            } else {
+                timer.prev.next = timer.next;
+                if (timer.next != null) {
+                    timer.next.prev = timer.prev;
+                } else {
+                    head.prev = timer.prev;
+                }
+            }
+            timer.next = null;
+            timer.prev = null;
+            timer.scheduled = false;
+            mCount--;
+        }
+
+        /**
+         * Entry of a wheel bucket, reachable from its chain entry for constant time removal
+         */
+        static class Timer {
+            private final TimerWheel mWheel;
+            final WeakRunnable wrapper;
+            final long uptimeMillis;
+            long tick; // Fields below are guarded by wheel
+            @Nullable
+            Timer next;
+            @Nullable
+            Timer prev; // Previous one in the bucket, or its tail for the head
+            boolean scheduled;
+
+            Timer(@NonNull TimerWheel wheel, @NonNull WeakRunnable wrapper, long uptimeMillis) {
+                mWheel = wheel;
+                this.wrapper = wrapper;
+                this.uptimeMillis = uptimeMillis;
+            }
+
+            void cancel() {
+                synchronized (mWheel.mBuckets) {
+                    if (scheduled) {
+                        mWheel.unlink(this);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Lanes of {@link #post(Runnable, Priority)}, from the highest to the lowest
+     */
+    public enum Priority {
+        HIGH,
+        NORMAL,
+        IDLE;
+
+        /**
+         * Runnable gets one lane higher for each this many milliseconds it waits
+         */
+        public static final long AGING_STEP_MILLIS = 100;
+    }
+
+    /**
+     * Own lanes of prioritized runnables, served one per looper turn by a single message.
+     * It keeps only weak wrappers, just like the message queue, and doesn't reference WeakHandler.
+     */
+    static class LaneQueue implements Drain {
+        private static final Priority[] PRIORITIES = Priority.values();
+
+        private final ExecHandler mExec;
+        private final ArrayDeque<LaneEntry>[] mLanes; // Guarded by itself
+        private int mPending;
+        private boolean mPosted;
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        LaneQueue(@NonNull ExecHandler exec) {
+            mExec = exec;
+            mLanes = new ArrayDeque[PRIORITIES.length];
+            for (int i = 0; i < mLanes.length; i++) {
+                mLanes[i] = new ArrayDeque<>();
+            }
+        }
+
+        boolean enqueue(@NonNull WeakRunnable wrapper, @NonNull Priority priority) {
+            synchronized (mLanes) {
+                mLanes[priority.ordinal()].add(new LaneEntry(wrapper, SystemClock.uptimeMillis()));
+                mPending++;
+                if (mPosted) {
+                    return true;
+                }
+                mPosted = true;
+            }
+            if (mExec.post(this)) {
+                return true;
+            }
+            clear();
+            return false;
+        }
+
+        void clear() {
+            synchronized (mLanes) {
+                for (ArrayDeque<LaneEntry> lane : mLanes) {
+                    lane.clear();
+                }
+                mPending = 0;
+                mPosted = false;
+            }
+            mExec.removeCallbacks(this);
+        }
+
+        @Override
+        public void run() {
+            final LaneEntry entry;
+            final boolean more;
+            synchronized (mLanes) {
+                entry = poll(SystemClock.uptimeMillis());
+                if (entry == null) {
+                    mPosted = false;
+                    return;
+                }
+                more = --mPending > 0;
+                mPosted = more;
+            }
+            if (more) {
+                // Posted before running, so the rest isn't stuck if runnable throws
+                mExec.post(this);
+            }
+            mExec.runPending(entry.wrapper);
+        }
+
+        // Must be called while holding mLanes
         @Nullable
-        ChainedRef prev;
-        @NonNull
-        final Runnable runnable;
-        @NonNull
+        private LaneEntry poll(long now) {
+            int best = -1;
+            long bestRank = Long.MAX_VALUE;
+            for (int i = 0; i < mLanes.length; i++) {
+                final LaneEntry head = mLanes[i].peek();
+                if (head == null) {
+                    continue;
+                }
+                final long rank = i - (now - head.uptimeMillis) / Priority.AGING_STEP_MILLIS;
+                if (rank < bestRank) { // Higher lane wins the tie
+                    best = i;
+                    bestRank = rank;
+                }
+            }
+            return best >= 0 ? mLanes[best].poll() : null;
+        }
+    }
+
+    private static class LaneEntry {
         final WeakRunnable wrapper;
+        final long uptimeMillis;
+
+        LaneEntry(WeakRunnable wrapper, long uptimeMillis) {
+            this.wrapper = wrapper;
+            this.uptimeMillis = uptimeMillis;
+        }
+    }
+
+    /**
+     * Listener of {@link #setMonitor(Monitor)}, called on the thread of the looper
+     */
+    public interface Monitor {
+        /**
+         * Called after message was delivered or runnable was run, including each runnable run
+         * on its turn in a batch, a priority lane, a frame budget or a timing wheel
+         *
+         * @param latencyMillis for runnables, time since the post till it started running,
+         *        including its delay, 0 if it was posted before monitor was set or run inline;
+         *        for messages, time since the message was due till it was delivered,
+         *        0 for messages sent to the front of the queue
+         * @param durationNanos time spent running it
+         */
+        void onDispatched(long latencyMillis, long durationNanos);
+
+        /**
+         * Called when runnable wasn't run because it was collected while waiting in the queue,
+         * and its message wasn't removed by reaper of collected entries yet
+         */
+        void onRunnableCollected();
+
+        /**
+         * Called when message wasn't delivered because callback of the handler was collected
+         */
+        void onCallbackCollected();
+    }
+
+    /**
+     * {@link Monitor} counting events and collecting histograms of latency and duration,
+     * which can be read from any thread.
+     * <p/>
+     * Bucket <var>i</var> of a histogram counts values from 2^(i-1) inclusive to 2^i exclusive,
+     * bucket 0 counts zeros and the last one counts all the values above.
+     */
+    public static class Counters implements Monitor {
+        private static final int LATENCY_BUCKETS = 12; // Up to a second in milliseconds
+        private static final int DURATION_BUCKETS = 20; // Up to a second in microseconds
+
+        private final AtomicLong mDispatched = new AtomicLong();
+        private final AtomicLong mRunnablesCollected = new AtomicLong();
+        private final AtomicLong mCallbacksCollected = new AtomicLong();
+        private final AtomicLongArray mLatencyMillis = new AtomicLongArray(LATENCY_BUCKETS);
+        private final AtomicLongArray mDurationMicros = new AtomicLongArray(DURATION_BUCKETS);
+
+        @Override
+        public void onDispatched(long latencyMillis, long durationNanos) {
+            mDispatched.incrementAndGet();
+            mLatencyMillis.incrementAndGet(bucket(latencyMillis, LATENCY_BUCKETS));
+            mDurationMicros.incrementAndGet(bucket(durationNanos / 1000, DURATION_BUCKETS));
+        }
+
+        @Override
+        public void onRunnableCollected() {
+            mRunnablesCollected.incrementAndGet();
+        }
+
+        @Override
+        public void onCallbackCollected() {
+            mCallbacksCollected.incrementAndGet();
+        }
+
+        public long getDispatched() {
+            return mDispatched.get();
+        }
+
+        public long getRunnablesCollected() {
+            return mRunnablesCollected.get();
+        }
+
+        public long getCallbacksCollected() {
+            return mCallbacksCollected.get();
+        }
+
+        /**
+         * Returns histogram of latency in milliseconds, see {@link Monitor#onDispatched}
+         */
+        @NonNull
+        public long[] getLatencyHistogram() {
+            return snapshot(mLatencyMillis);
+        }
 
+        /**
+         * Returns histogram of duration in microseconds, see {@link Monitor#onDispatched}
+         */
         @NonNull
-        Lock lock;
+        public long[] getDurationHistogram() {
+            return snapshot(mDurationMicros);
+        }
 
-        public ChainedRef(@NonNull Lock lock, @NonNull Runnable r) {
-            this.runnable = r;
-            this.lock = lock;
-            this.wrapper = new WeakRunnable(new WeakReference<>(r), new WeakReference<>(this));
+        private static int bucket(long value, int buckets) {
+            final int bits = 64 - Long.numberOfLeadingZeros(Math.max(0, value));
+            return Math.min(bits, buckets - 1);
         }
 
-        public WeakRunnable remove() {
-            lock.lock();
-            try {
-                if (prev != null) {
-                    prev.next = next;
+        private static long[] snapshot(AtomicLongArray histogram) {
+            final long[] result = new long[histogram.length()];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = histogram.get(i);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Debugging aid sampling call site of each Nth post, see
+     * {@link #setRetentionTracker(RetentionTracker)}. Keeps at most {@link #MAX_SAMPLES} latest
+     * samples, so overhead stays bounded and it can be left on in internal builds.
+     * <p/>
+     * Sampled posts can be checked from any thread, e.g. periodically or from a debug menu,
+     * for ones which are pending too long and ones which are retained by something else than
+     * the handler they were posted to after that handler was collected. Each sample is
+     * a {@link PostSite}, whose stack trace is the call site of the post.
+     */
+    public static class RetentionTracker {
+        public static final int MAX_SAMPLES = 256;
+
+        private final int mSampleEvery;
+        private final long mThresholdMillis;
+        private final AtomicLong mPosts = new AtomicLong();
+        private final ArrayDeque<PostSite> mSamples = new ArrayDeque<>(); // Guarded by itself
+
+        /**
+         * @param sampleEvery sample each Nth post, 1 to sample all of them
+         * @param thresholdMillis how long sampled post can be pending before it is reported
+         */
+        public RetentionTracker(int sampleEvery, long thresholdMillis) {
+            if (sampleEvery <= 0) {
+                throw new IllegalArgumentException("Sampling interval must be positive: " + sampleEvery);
+            }
+            mSampleEvery = sampleEvery;
+            mThresholdMillis = thresholdMillis;
+        }
+
+        /**
+         * Returns sampled posts which are still pending longer than the threshold, oldest first
+         */
+        @NonNull
+        public List<PostSite> findLongPending() {
+            final long now = SystemClock.uptimeMillis();
+            final List<PostSite> result = new ArrayList<>();
+            for (PostSite site : snapshot()) {
+                if (now - site.mPostedAt >= mThresholdMillis && site.isPending()) {
+                    result.add(site);
                 }
-                if (next != null) {
-                    next.prev = prev;
+            }
+            return result;
+        }
+
+        /**
+         * Returns sampled posts whose handler was collected while runnable is still reachable,
+         * which usually means that runnable leaks whatever it references
+         */
+        @NonNull
+        public List<PostSite> findRetained() {
+            final List<PostSite> result = new ArrayList<>();
+            for (PostSite site : snapshot()) {
+                if (site.mHandler.get() == null && site.getRunnable() != null) {
+                    result.add(site);
                 }
-                prev = null;
-                next = null;
-            } finally {
-                lock.unlock();
             }
-            return wrapper;
+            return result;
         }
 
-        public void insertAfter(@NonNull ChainedRef candidate) {
-            lock.lock();
-            try {
-                if (this.next != null) {
-                    this.next.prev = candidate;
+        @Nullable
+        PostSite sample(@NonNull WeakHandler handler, @NonNull ChainedRef ref) {
+            if (mPosts.incrementAndGet() % mSampleEvery != 0) {
+                return null;
+            }
+            final PostSite site = new PostSite(handler, ref);
+            synchronized (mSamples) {
+                if (mSamples.size() == MAX_SAMPLES) {
+                    mSamples.removeFirst();
                 }
+                mSamples.addLast(site);
+            }
+            return site;
+        }
 
-                candidate.next = this.next;
-                this.next = candidate;
-                candidate.prev = this;
-            } finally {
-                lock.unlock();
+        /**
+         * Copies samples, dropping ones with collected runnables, which have nothing to report
+         */
+        @NonNull
+        private List<PostSite> snapshot() {
+            synchronized (mSamples) {
+                final Iterator<PostSite> iterator = mSamples.iterator();
+                while (iterator.hasNext()) {
+                    if (iterator.next().getRunnable() == null) {
+                        iterator.remove();
+                    }
+                }
+                return new ArrayList<>(mSamples);
+            }
+        }
+    }
+
+    /**
+     * Sampled post of {@link RetentionTracker}, its stack trace is the call site of the post
+     */
+    public static final class PostSite extends Throwable {
+        private static final long serialVersionUID = 1L;
+
+        private final long mPostedAt;
+        private final String mRunnableClass;
+        private final WeakReference<Runnable> mRunnable;
+        private final WeakReference<WeakHandler> mHandler;
+        private final WeakReference<ChainedRef> mEntry;
+
+        PostSite(@NonNull WeakHandler handler, @NonNull ChainedRef ref) {
+            super("Posted " + ref.runnable.getClass().getName());
+            mPostedAt = SystemClock.uptimeMillis();
+            mRunnableClass = ref.runnable.getClass().getName();
+            mRunnable = new WeakReference<>(ref.runnable);
+            mHandler = new WeakReference<>(handler);
+            mEntry = new WeakReference<>(ref);
+            // Start the trace at the caller of the post
+            final StackTraceElement[] trace = getStackTrace();
+            int start = 0;
+            while (start < trace.length - 1 && isInternal(trace[start].getClassName())) {
+                start++;
             }
+            final StackTraceElement[] callerTrace = new StackTraceElement[trace.length - start];
+            System.arraycopy(trace, start, callerTrace, 0, callerTrace.length);
+            setStackTrace(callerTrace);
+        }
+
+        /**
+         * Returns {@link SystemClock#uptimeMillis()} of the post
+         */
+        public long getPostedAt() {
+            return mPostedAt;
+        }
+
+        @NonNull
+        public String getRunnableClass() {
+            return mRunnableClass;
         }
 
         @Nullable
-        public WeakRunnable remove(Runnable obj) {
-            lock.lock();
-            try {
-                ChainedRef curr = this.next; // Skipping head
-                while (curr != null) {
-                    if (curr.runnable == obj) { // We do comparison exactly how Handler does inside
-                        return curr.remove();
+        public Runnable getRunnable() {
+            return mRunnable.get();
+        }
+
+        private static boolean isInternal(@NonNull String className) {
+            final String name = WeakHandler.class.getName();
+            return className.startsWith(name)
+                && (className.length() == name.length() || className.charAt(name.length()) == '$');
+        }
+
+        boolean isPending() {
+            final ChainedRef ref = mEntry.get();
+            // Pooled entry may be carrying another post by now
+            return ref != null && ref.site == this && ref.isLinked();
+        }
+    }
+
+    /**
+     * Runnable posted by WeakHandler itself to run wrappers it queued, which reports each of them
+     * to the monitor instead of being reported itself
+     */
+    private interface Drain extends Runnable {
+    }
+
+    private static class ExecHandler extends Handler implements WrapperQueue {
+        private final WeakReference<Handler.Callback> mCallback;
+        private final boolean mAsync;
+        // Set by WeakHandler owning it, null if shared by forLooper() views
+        @Nullable
+        volatile WeakReference<WeakHandler> mOwner;
+        @Nullable
+        volatile Monitor mMonitor;
+        volatile boolean mPaused;
+        int mInlineDepth; // Accessed on the looper thread only
+        private boolean mCoalesceParked; // Guarded by mParked
+        // Copies of messages which became due while paused, keyed by themselves unless coalesced.
+        // Allocated on first pause, guards itself
+        @Nullable
+        private volatile LinkedHashMap<Object, Message> mParked;
+
+        ExecHandler() {
+            mCallback = null;
+            mAsync = false;
+        }
+
+        ExecHandler(WeakReference<Handler.Callback> callback) {
+            mCallback = callback;
+            mAsync = false;
+        }
+
+        ExecHandler(Looper looper) {
+            super(looper);
+            mCallback = null;
+            mAsync = false;
+        }
+
+        ExecHandler(Looper looper, WeakReference<Handler.Callback> callback) {
+            super(looper);
+            mCallback = callback;
+            mAsync = false;
+        }
+
+        ExecHandler(Looper looper, @Nullable WeakReference<Handler.Callback> callback, boolean async) {
+            super(looper);
+            mCallback = callback;
+            mAsync = async;
+        }
+
+        @Override
+        public boolean sendMessageAtTime(@NonNull Message msg, long uptimeMillis) {
+            // Every post and send of Handler ends up here, except for the front of the queue
+            markAsync(msg);
+            return super.sendMessageAtTime(msg, uptimeMillis);
+        }
+
+        /**
+         * Replaces final {@link #sendMessageAtFrontOfQueue(Message)}, which bypasses
+         * {@link #sendMessageAtTime(Message, long)}
+         */
+        boolean sendAtFront(@NonNull Message msg) {
+            markAsync(msg);
+            return sendMessageAtFrontOfQueue(msg);
+        }
+
+        @Override
+        public void reap(@NonNull List<WeakRunnable> wrappers) {
+            final WeakReference<WeakHandler> owner = mOwner;
+            final boolean orphaned = owner != null && owner.get() == null;
+            if (orphaned && mMonitor == null && (mCallback == null || mCallback.get() == null)) {
+                // Nothing left in the queue can run, nor is its dispatch observed, so drop it
+                // all in a single pass
+                removeCallbacksAndMessages(null);
+                return;
+            }
+            if (orphaned) { // Messages may still reach the callback, but pooled posts are all dead
+                removeMessages(WHAT_POOLED_RUNNABLE);
+            }
+            for (WeakRunnable wrapper : wrappers) {
+                if (!wrapper.isPooled()) {
+                    removeCallbacks(wrapper);
+                } else if (!orphaned) {
+                    removeMessages(WHAT_POOLED_RUNNABLE, wrapper);
+                }
+            }
+        }
+
+        @SuppressLint("NewApi") // Public since Lollipop MR1, but present since Jelly Bean
+        private void markAsync(@NonNull Message msg) {
+            if (mAsync && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+                msg.setAsynchronous(true);
+            }
+        }
+
+        void pause(boolean coalesce) {
+            LinkedHashMap<Object, Message> parked = mParked;
+            if (parked == null) {
+                synchronized (this) {
+                    parked = mParked;
+                    if (parked == null) {
+                        mParked = parked = new LinkedHashMap<>();
                     }
-                    curr = curr.next;
                 }
-            } finally {
-                lock.unlock();
+            }
+            synchronized (parked) {
+                mPaused = true;
+                mCoalesceParked = coalesce;
+            }
+        }
+
+        void resume() {
+            final LinkedHashMap<Object, Message> parked = mParked;
+            if (parked == null) { // Never paused
+                return;
+            }
+            synchronized (parked) {
+                if (!mPaused) {
+                    return;
+                }
+                mPaused = false;
+                if (parked.isEmpty()) {
+                    return;
+                }
+            }
+            sendAtFront(Message.obtain(this, new Drain() {
+                @Override
+                public void run() {
+                    replay();
+                }
+            }));
+        }
+
+        /**
+         * Finds parked messages with given what code (unless <var>anyWhat</var> is set) and obj
+         * (unless both objects are null). Like the message queue, what code never matches posted
+         * runnables, whose what is 0.
+         *
+         * @return true if there was at least one
+         */
+        boolean matchParked(boolean remove, boolean anyWhat, int what, @Nullable Object obj,
+                            @Nullable Object otherObj) {
+            final LinkedHashMap<Object, Message> messages = mParked;
+            if (messages == null) {
+                return false;
+            }
+            boolean found = false;
+            synchronized (messages) {
+                final Iterator<Message> iterator = messages.values().iterator();
+                while (iterator.hasNext()) {
+                    final Message parked = iterator.next();
+                    if ((anyWhat || parked.getCallback() == null && parked.what == what)
+                        && (obj == null && otherObj == null || parked.obj == obj || parked.obj == otherObj)) {
+                        if (!remove) {
+                            return true;
+                        }
+                        iterator.remove();
+                        found = true;
+                    }
+                }
+            }
+            return found;
+        }
+
+        @Override
+        public void dispatchMessage(@NonNull Message msg) {
+            if (mPaused && park(msg)) {
+                return;
+            }
+            if (msg.obj instanceof BudgetQueue && msg.getCallback() instanceof WeakRunnable) {
+                // Due delayed post of frame budgeted handler, it runs on its turn in the budget
+                ((BudgetQueue) msg.obj).enqueue((WeakRunnable) msg.getCallback());
+                return;
+            }
+            final Monitor monitor = mMonitor;
+            final Runnable callback = msg.getCallback();
+            if (monitor == null || callback instanceof Drain) { // Drains report what they run
+                super.dispatchMessage(msg);
+                return;
+            }
+            if (callback instanceof WeakRunnable) {
+                run(monitor, (WeakRunnable) callback, msg);
+                return;
+            }
+            if (msg.what == WHAT_POOLED_RUNNABLE && msg.obj instanceof WeakRunnable) {
+                run(monitor, (WeakRunnable) msg.obj, msg);
+                return;
+            }
+            final long when = msg.getWhen();
+            final long latencyMillis = when > 0 ? Math.max(0, SystemClock.uptimeMillis() - when) : 0;
+            final long start = System.nanoTime();
+            super.dispatchMessage(msg);
+            monitor.onDispatched(latencyMillis, System.nanoTime() - start);
+        }
+
+        /**
+         * Runs wrapper taken off a queue of WeakHandler, reporting it to the monitor if there is one
+         */
+        void runPending(@NonNull WeakRunnable wrapper) {
+            final Monitor monitor = mMonitor;
+            if (monitor == null) {
+                wrapper.runIfPending();
+            } else {
+                run(monitor, wrapper, null);
+            }
+        }
+
+        /**
+         * Runs wrapper delivered by <var>msg</var>, or taken off a queue if it is null, and reports
+         * it with latency since its post
+         */
+        private static void run(@NonNull Monitor monitor, @NonNull WeakRunnable wrapper, @Nullable Message msg) {
+            if (wrapper.isCollected()) {
+                monitor.onRunnableCollected();
+                return;
+            }
+            final long postedAt = wrapper.postedAt();
+            final long latencyMillis = postedAt > 0 ? Math.max(0, SystemClock.uptimeMillis() - postedAt) : 0;
+            final long start = System.nanoTime();
+            final boolean ran;
+            if (msg == null) {
+                ran = wrapper.runIfPending();
+            } else if (msg.getCallback() != null) {
+                ran = wrapper.runPosted();
+            } else {
+                ran = wrapper.run(msg.arg1);
+            }
+            if (ran) {
+                monitor.onDispatched(latencyMillis, System.nanoTime() - start);
+            }
+        }
+
+        // Called once mPaused was seen set, so the parked messages are allocated already
+        private boolean park(@NonNull Message msg) {
+            final LinkedHashMap<Object, Message> parked = mParked;
+            synchronized (parked) {
+                if (!mPaused) { // Resumed meanwhile
+                    return false;
+                }
+                // Looper recycles the original one once we return
+                final Message copy = Message.obtain(msg);
+                Object key = copy;
+                if (mCoalesceParked) {
+                    key = coalesceKey(copy);
+                    if (key == null) { // Collected, wouldn't run anyway
+                        return true;
+                    }
+                }
+                final Message previous = parked.remove(key);
+                if (previous != null) {
+                    discard(previous);
+                }
+                parked.put(key, copy);
+                return true;
+            }
+        }
+
+        private void replay() {
+            final LinkedHashMap<Object, Message> parked = mParked; // Allocated by the pause
+            final List<Message> replayed;
+            synchronized (parked) {
+                if (mPaused) { // Paused again before replay got its turn
+                    return;
+                }
+                replayed = new ArrayList<>(parked.values());
+                parked.clear();
+            }
+            for (Message msg : replayed) {
+                final Runnable callback = msg.getCallback();
+                if (callback instanceof WeakRunnable) {
+                    // Unlike the message queue, removals don't reach it here, so make sure
+                    // it wasn't removed since it was parked
+                    runPending((WeakRunnable) callback);
+                } else {
+                    dispatchMessage(msg);
+                }
+            }
+        }
+
+        @Nullable
+        private static Object coalesceKey(@NonNull Message msg) {
+            final Runnable callback = msg.getCallback();
+            if (callback instanceof WeakRunnable) {
+                return ((WeakRunnable) callback).target();
+            }
+            if (callback != null) {
+                return callback;
+            }
+            if (msg.what == WHAT_POOLED_RUNNABLE && msg.obj instanceof WeakRunnable) {
+                return ((WeakRunnable) msg.obj).target();
+            }
+            return msg.what;
+        }
+
+        /**
+         * Drops entry of parked runnable replaced by a newer one
+         */
+        private static void discard(@NonNull Message msg) {
+            final Runnable callback = msg.getCallback();
+            if (callback instanceof WeakRunnable) {
+                ((WeakRunnable) callback).discard(0);
+            } else if (msg.what == WHAT_POOLED_RUNNABLE && msg.obj instanceof WeakRunnable) {
+                ((WeakRunnable) msg.obj).discard(msg.arg1);
+            }
+        }
+
+        @Override
+        public void handleMessage(@NonNull Message msg) {
+            if (msg.what == WHAT_POOLED_RUNNABLE && msg.obj instanceof WeakRunnable) {
+                ((WeakRunnable) msg.obj).run(msg.arg1);
+                return;
+            }
+            if (msg.obj instanceof WeakObject) {
+                final Object obj = ((WeakObject) msg.obj).get();
+                if (obj == null) { // Collected while message was waiting in the queue
+                    return;
+                }
+                msg.obj = obj;
+            }
+            if (mCallback == null) {
+                return;
+            }
+            final Handler.Callback callback = mCallback.get();
+            if (callback == null) { // Already disposed
+                final Monitor monitor = mMonitor;
+                if (monitor != null) {
+                    monitor.onCallbackCollected();
+                }
+                return;
+            }
+            callback.handleMessage(msg);
+        }
+    }
+
+    /**
+     * Weak reference to {@link Message#obj}, compared by identity of its referent
+     */
+    static class WeakObject extends WeakReference<Object> {
+        final int hash;
+        @Nullable
+        WeakObject next;
+
+        WeakObject(@NonNull Object referent, int hash, @NonNull ReferenceQueue<Object> queue) {
+            super(referent, queue);
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * Keeps single {@link WeakObject} per live object, so messages sent with the same obj
+     * can be found in the queue by it. Entries are expunged once their objects are collected.
+     */
+    static class WeakObjects {
+        private final ReferenceQueue<Object> mQueue = new ReferenceQueue<>();
+        @Nullable
+        private WeakObject[] mTable; // Allocated on first use
+        private int mSize;
+
+        @NonNull
+        synchronized WeakObject wrap(@NonNull Object obj) {
+            final WeakObject existing = find(obj);
+            if (existing != null) {
+                return existing;
+            }
+            if (mTable == null) {
+                mTable = new WeakObject[16];
+            } else if (mSize >= mTable.length * 3 / 4) {
+                resize();
+            }
+            final int hash = System.identityHashCode(obj);
+            final int i = hash & (mTable.length - 1);
+            final WeakObject created = new WeakObject(obj, hash, mQueue);
+            created.next = mTable[i];
+            mTable[i] = created;
+            mSize++;
+            return created;
+        }
+
+        @Nullable
+        synchronized WeakObject find(@Nullable Object obj) {
+            if (mTable == null || obj == null) {
+                return null;
+            }
+            expunge();
+            final int hash = System.identityHashCode(obj);
+            for (WeakObject e = mTable[hash & (mTable.length - 1)]; e != null; e = e.next) {
+                if (e.hash == hash && e.get() == obj) {
+                    return e;
+                }
             }
             return null;
         }
+
+        private void expunge() {
+            Object stale;
+            while ((stale = mQueue.poll()) != null) {
+                final WeakObject entry = (WeakObject) stale;
+                final int i = entry.hash & (mTable.length - 1);
+                WeakObject prev = null;
+                for (WeakObject e = mTable[i]; e != null; prev = e, e = e.next) {
+                    if (e == entry) {
+                        if (prev == null) {
+                            mTable[i] = e.next;
+                        } else {
+                            prev.next = e.next;
+                        }
+                        e.next = null;
+                        mSize--;
+                        break;
+                    }
+                }
+            }
+        }
+
+        private void resize() {
+            final WeakObject[] old = mTable;
+            final WeakObject[] table = new WeakObject[old.length * 2];
+            for (WeakObject head : old) {
+                WeakObject e = head;
+                while (e != null) {
+                    final WeakObject next = e.next;
+                    final int i = e.hash & (table.length - 1);
+                    e.next = table[i];
+                    table[i] = e;
+                    e = next;
+                }
+            }
+            mTable = table;
+        }
     }
 }
@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2014 Badoo Trading Limited
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.badoo.mobile.util;
+
+import android.os.Build;
+import android.os.HandlerThread;
+import android.os.Process;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Background {@link WeakHandler}s over several {@link HandlerThread}s, so background work isn't
+ * stuck on a single core. Each post is routed to a shard by its affinity key: runnables posted
+ * with equal keys run on the same thread in posting order, while different keys spread across
+ * threads.
+ * <p/>
+ * Shards are ordinary WeakHandlers owned by the pool, so posted runnables are referenced only
+ * as long as the pool is. Threads however run until {@link #quit()} or {@link #quitSafely()}.
+ */
+@SuppressWarnings("unused")
+public final class WeakHandlerPool {
+
+    private final HandlerThread[] mThreads;
+    private final WeakHandler[] mHandlers;
+
+    /**
+     * Creates pool with a background priority thread per available core
+     *
+     * @param name prefix of thread names
+     */
+    public WeakHandlerPool(@NonNull String name) {
+        this(name, Runtime.getRuntime().availableProcessors(), Process.THREAD_PRIORITY_BACKGROUND);
+    }
+
+    /**
+     * @param name prefix of thread names
+     * @param size number of threads
+     * @param priority priority of threads, see {@link Process}
+     */
+    public WeakHandlerPool(@NonNull String name, int size, int priority) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("Size must be positive: " + size);
+        }
+        mThreads = new HandlerThread[size];
+        mHandlers = new WeakHandler[size];
+        for (int i = 0; i < size; ++i) {
+            mThreads[i] = new HandlerThread(name + "-" + i, priority);
+            mThreads[i].start();
+            mHandlers[i] = new WeakHandler(mThreads[i].getLooper());
+        }
+    }
+
+    public int size() {
+        return mHandlers.length;
+    }
+
+    /**
+     * Returns handler of the shard <var>key</var> is routed to, for anything beyond posting.
+     * Equal keys get the same handler, null key gets the first one.
+     */
+    @NonNull
+    public WeakHandler handlerFor(@Nullable Object key) {
+        if (key == null) {
+            return mHandlers[0];
+        }
+        final int hash = key.hashCode();
+        return mHandlers[((hash ^ (hash >>> 16)) & Integer.MAX_VALUE) % mHandlers.length];
+    }
+
+    /**
+     * Causes the Runnable r to be run on the shard of <var>key</var>.
+     *
+     * @see WeakHandler#post(Runnable)
+     */
+    public boolean post(@Nullable Object key, @NonNull Runnable r) {
+        return handlerFor(key).post(r);
+    }
+
+    /**
+     * Causes the Runnable r to be run on the shard of <var>key</var> after the specified amount
+     * of time elapses.
+     *
+     * @see WeakHandler#postDelayed(Runnable, long)
+     */
+    public boolean postDelayed(@Nullable Object key, @NonNull Runnable r, long delayMillis) {
+        return handlerFor(key).postDelayed(r, delayMillis);
+    }
+
+    /**
+     * Causes the Runnable r to be run on the shard of <var>key</var> at a specific time,
+     * so it can be removed with <var>token</var>.
+     *
+     * @see WeakHandler#postAtTime(Runnable, Object, long)
+     */
+    public boolean postAtTime(@Nullable Object key, @NonNull Runnable r, @Nullable Object token,
+                              long uptimeMillis) {
+        return handlerFor(key).postAtTime(r, token, uptimeMillis);
+    }
+
+    /**
+     * Remove any pending posts of Runnable r made with <var>key</var>.
+     */
+    public void removeCallbacks(@Nullable Object key, @NonNull Runnable r) {
+        handlerFor(key).removeCallbacks(r);
+    }
+
+    /**
+     * Remove any pending posts of Runnable r from all shards, use it when key isn't known.
+     */
+    public void removeCallbacks(@NonNull Runnable r) {
+        for (WeakHandler handler : mHandlers) {
+            handler.removeCallbacks(r);
+        }
+    }
+
+    /**
+     * Remove all pending posts of Runnable r made with <var>token</var> from all shards,
+     * or all pending posts of r if token is null.
+     */
+    public void removeCallbacks(@NonNull Runnable r, @Nullable Object token) {
+        for (WeakHandler handler : mHandlers) {
+            handler.removeCallbacks(r, token);
+        }
+    }
+
+    /**
+     * Remove pending posts and messages whose obj is <var>token</var> from all shards.
+     * If token is null, all posts and messages are removed.
+     */
+    public void removeCallbacksAndMessages(@Nullable Object token) {
+        for (WeakHandler handler : mHandlers) {
+            handler.removeCallbacksAndMessages(token);
+        }
+    }
+
+    /**
+     * Returns number of runnables waiting to be run on all shards.
+     */
+    public int getPendingCount() {
+        int count = 0;
+        for (WeakHandler handler : mHandlers) {
+            count += handler.getPendingCount();
+        }
+        return count;
+    }
+
+    /**
+     * Stops all threads right away, pending runnables are dropped.
+     */
+    public void quit() {
+        for (HandlerThread thread : mThreads) {
+            thread.quit();
+        }
+    }
+
+    /**
+     * Stops all threads once runnables which are already due have run, falls back to
+     * {@link #quit()} before Jelly Bean MR2.
+     */
+    public void quitSafely() {
+        for (HandlerThread thread : mThreads) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+                thread.quitSafely();
+            } else {
+                thread.quit();
+            }
+        }
+    }
+}